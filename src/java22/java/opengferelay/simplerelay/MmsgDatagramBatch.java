@@ -0,0 +1,444 @@
+package opengferelay.simplerelay;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.WeakHashMap;
+
+// Moves a whole burst with one recvmmsg() or sendmmsg() call instead of one
+// system call per datagram. The channels stay registered with the selector
+// as usual; only the reads and writes go straight to their sockets. Datagrams
+// are received into and sent back out of the same native memory, so nothing
+// is copied on the Java side either.
+//
+// This is built from src/java22 into the versioned part of the jar, see
+// DatagramBatch for how it's loaded.
+class MmsgDatagramBatch extends DatagramBatch {
+	// struct iovec, struct msghdr and struct mmsghdr on 64-bit Linux
+	private static final long IOVEC_SIZE = 16;
+	private static final long IOV_BASE = 0;
+	private static final long IOV_LEN = 8;
+	private static final long MMSGHDR_SIZE = 64;
+	private static final long MSG_NAME = 0;
+	private static final long MSG_NAMELEN = 8;
+	private static final long MSG_IOV = 16;
+	private static final long MSG_IOVLEN = 24;
+	private static final long MSG_LEN = 56;
+
+	// Large enough for a struct sockaddr_in6, which is what dual-stack sockets use
+	private static final int SOCKADDR_SIZE = 28;
+	private static final int SOCKADDR_IN_SIZE = 16;
+	private static final int AF_INET = 2;
+	private static final int AF_INET6 = 10;
+
+	private static final int SOL_SOCKET = 1;
+	private static final int SO_DOMAIN = 39;
+	private static final int MSG_DONTWAIT = 0x40;
+	private static final int EINTR = 4;
+	private static final int EAGAIN = 11;
+
+	private static final ValueLayout.OfShort PORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+	// Recent senders are remembered by their raw sockaddr, so a client that's
+	// streaming is matched without decoding its address for every burst
+	private static final int SOURCE_CACHE_SIZE = 4;
+
+	// The JDK doesn't expose a channel's file descriptor
+	private static final Method GET_FD_VAL = findGetFdVal();
+	private static final String UNAVAILABLE_REASON = checkAvailable();
+
+	private final int capacity;
+	private final MemorySegment headers;
+	private final MemorySegment iovecs;
+	private final MemorySegment names;
+	private final MemorySegment callState;
+	private final MemorySegment optionValue;
+	private final int[] lengths;
+	private final SocketAddress[] sources;
+	private long receiveTime;
+
+	private final MemorySegment sourceNames;
+	private final int[] sourceNameLengths = new int[SOURCE_CACHE_SIZE];
+	private final SocketAddress[] sourceAddresses = new SocketAddress[SOURCE_CACHE_SIZE];
+	private int nextSource;
+
+	// Encoded sockaddr of each address sent to, dropped along with the
+	// address once its session is gone
+	private final WeakHashMap<SocketAddress, TargetName> targetNames = new WeakHashMap<>();
+	private final WeakHashMap<DatagramChannel, int[]> sockets = new WeakHashMap<>();
+
+	private static class TargetName {
+		final MemorySegment name;
+		final int length;
+		final int family;
+
+		TargetName(MemorySegment name, int length, int family) {
+			this.name = name;
+			this.length = length;
+			this.family = family;
+		}
+	}
+
+	// Linked on first use, so a missing symbol or denied native access only
+	// ever makes the constructor fail. Pointers are passed as plain addresses
+	// so that calls don't need a slice of a segment for each burst.
+	//
+	// Capturing errno costs an allocation per call, so the hot path calls
+	// without it and only a call that failed is repeated with it to find out
+	// why. Usually the answer is EAGAIN either way.
+	private static class Syscalls {
+		static final FunctionDescriptor RECVMMSG_TYPE =
+				FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, JAVA_INT, JAVA_INT, JAVA_LONG);
+		static final FunctionDescriptor SENDMMSG_TYPE =
+				FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, JAVA_INT, JAVA_INT);
+
+		static final MethodHandle RECVMMSG = downcall("recvmmsg", RECVMMSG_TYPE, false);
+		static final MethodHandle RECVMMSG_ERRNO = downcall("recvmmsg", RECVMMSG_TYPE, true);
+		static final MethodHandle SENDMMSG = downcall("sendmmsg", SENDMMSG_TYPE, false);
+		static final MethodHandle SENDMMSG_ERRNO = downcall("sendmmsg", SENDMMSG_TYPE, true);
+		static final MethodHandle GETSOCKOPT = downcall("getsockopt",
+				FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_LONG, JAVA_LONG), true);
+		static final long ERRNO_OFFSET = Linker.Option.captureStateLayout()
+				.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+
+		private static MethodHandle downcall(String name, FunctionDescriptor descriptor, boolean captureErrno) {
+			Linker linker = Linker.nativeLinker();
+			MemorySegment symbol = linker.defaultLookup().find(name).orElse(null);
+			if (symbol == null) {
+				throw new UnsatisfiedLinkError("No "+name+"() in the C library");
+			}
+			if (captureErrno) {
+				return linker.downcallHandle(symbol, descriptor, Linker.Option.captureCallState("errno"));
+			}
+			return linker.downcallHandle(symbol, descriptor);
+		}
+	}
+
+	MmsgDatagramBatch(int capacity) {
+		if (UNAVAILABLE_REASON != null) {
+			throw new UnsupportedOperationException(UNAVAILABLE_REASON);
+		}
+
+		// Shared with the loop thread, and lives as long as the relay does
+		Arena arena = Arena.ofAuto();
+		this.capacity = capacity;
+		headers = arena.allocate(capacity * MMSGHDR_SIZE, 8);
+		iovecs = arena.allocate(capacity * IOVEC_SIZE, 8);
+		names = arena.allocate((long) capacity * SOCKADDR_SIZE, 8);
+		callState = arena.allocate(Linker.Option.captureStateLayout());
+		optionValue = arena.allocate(8, 8);
+		sourceNames = arena.allocate(SOURCE_CACHE_SIZE * SOCKADDR_SIZE, 8);
+		lengths = new int[capacity];
+		sources = new SocketAddress[capacity];
+
+		// Each slot is a header with a single iovec over its part of the data
+		MemorySegment data = arena.allocate((long) capacity * MAX_DATAGRAM_SIZE, 8);
+		for (int i = 0; i < capacity; i++) {
+			iovecs.set(JAVA_LONG, i * IOVEC_SIZE + IOV_BASE, data.address() + (long) i * MAX_DATAGRAM_SIZE);
+			headers.set(JAVA_LONG, i * MMSGHDR_SIZE + MSG_IOV, iovecs.address() + i * IOVEC_SIZE);
+			headers.set(JAVA_LONG, i * MMSGHDR_SIZE + MSG_IOVLEN, 1);
+		}
+	}
+
+	private static Method findGetFdVal() {
+		try {
+			return Class.forName("sun.nio.ch.SelChImpl").getMethod("getFDVal");
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static String checkAvailable() {
+		if (!"Linux".equals(System.getProperty("os.name")) || ADDRESS.byteSize() != 8) {
+			return "recvmmsg/sendmmsg batching is only supported on 64-bit Linux";
+		}
+
+		try {
+			Syscalls.RECVMMSG.type();
+		} catch (LinkageError | RuntimeException e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			return "recvmmsg/sendmmsg batching is unavailable ("+cause+"); native access may need "+
+					"--enable-native-access=ALL-UNNAMED";
+		}
+
+		if (GET_FD_VAL == null) {
+			return "recvmmsg/sendmmsg batching can't find the file descriptors of channels on this JVM";
+		}
+		try (DatagramChannel probe = DatagramChannel.open()) {
+			GET_FD_VAL.invoke(probe);
+		} catch (IllegalAccessException e) {
+			return "recvmmsg/sendmmsg batching needs --add-exports java.base/sun.nio.ch=ALL-UNNAMED "+
+					"(set by the jar manifest when started with java -jar)";
+		} catch (ReflectiveOperationException | IOException e) {
+			return "recvmmsg/sendmmsg batching can't find the file descriptors of channels: "+e;
+		}
+		return null;
+	}
+
+	@Override
+	int receive(DatagramChannel channel) throws IOException {
+		int[] socket = getSocket(channel);
+
+		// The kernel writes back how much of the name and data it filled in
+		for (int i = 0; i < capacity; i++) {
+			long header = i * MMSGHDR_SIZE;
+			headers.set(JAVA_LONG, header + MSG_NAME, names.address() + (long) i * SOCKADDR_SIZE);
+			headers.set(JAVA_INT, header + MSG_NAMELEN, SOCKADDR_SIZE);
+			iovecs.set(JAVA_LONG, i * IOVEC_SIZE + IOV_LEN, MAX_DATAGRAM_SIZE);
+		}
+
+		int count = recvmmsg(socket[0], false);
+		while (count < 0) {
+			count = recvmmsg(socket[0], true);
+			if (count < 0) {
+				int errno = getErrno();
+				if (errno == EAGAIN) {
+					return 0;
+				}
+				else if (errno != EINTR) {
+					throw new IOException("recvmmsg() failed with errno "+errno);
+				}
+			}
+		}
+
+		receiveTime = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			long header = i * MMSGHDR_SIZE;
+			lengths[i] = headers.get(JAVA_INT, header + MSG_LEN);
+			sources[i] = lookupSource((long) i * SOCKADDR_SIZE, headers.get(JAVA_INT, header + MSG_NAMELEN));
+		}
+		return count;
+	}
+
+	@Override
+	int send(DatagramChannel channel, int from, int to, SocketAddress target) throws IOException {
+		int[] socket = getSocket(channel);
+		TargetName name = getTargetName(target, socket[1]);
+
+		for (int i = from; i < to; i++) {
+			long header = i * MMSGHDR_SIZE;
+			headers.set(JAVA_LONG, header + MSG_NAME, name.name.address());
+			headers.set(JAVA_INT, header + MSG_NAMELEN, name.length);
+			iovecs.set(JAVA_LONG, i * IOVEC_SIZE + IOV_LEN, lengths[i]);
+		}
+
+		// sendmmsg() stops early when the socket buffer fills up or a datagram fails.
+		// Carry on after it, so the next call reports why.
+		int sent = 0;
+		boolean captureErrno = false;
+		while (from + sent < to) {
+			int result = sendmmsg(socket[0], from + sent, to - from - sent, captureErrno);
+			if (result > 0) {
+				sent += result;
+				captureErrno = false;
+				continue;
+			}
+			else if (result == 0) {
+				break;
+			}
+			else if (!captureErrno) {
+				captureErrno = true;
+				continue;
+			}
+
+			int errno = getErrno();
+			if (errno == EINTR) {
+				continue;
+			}
+			else if (errno == EAGAIN || sent != 0) {
+				// Either the buffer is full, or report the error with the next burst
+				// so the datagrams that did go out are counted
+				break;
+			}
+			throw new IOException("sendmmsg() failed with errno "+errno);
+		}
+		return sent;
+	}
+
+	@Override
+	int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	int getLength(int slot) {
+		return lengths[slot];
+	}
+
+	@Override
+	SocketAddress getSource(int slot) {
+		return sources[slot];
+	}
+
+	// Everything from one recvmmsg() shares a timestamp
+	@Override
+	long getReceiveTime(int slot) {
+		return receiveTime;
+	}
+
+	private int recvmmsg(int fd, boolean captureErrno) throws IOException {
+		try {
+			if (captureErrno) {
+				return (int) Syscalls.RECVMMSG_ERRNO.invokeExact(callState, fd, headers.address(), capacity, MSG_DONTWAIT, 0L);
+			}
+			return (int) Syscalls.RECVMMSG.invokeExact(fd, headers.address(), capacity, MSG_DONTWAIT, 0L);
+		} catch (Throwable e) {
+			throw new IOException("recvmmsg() failed", e);
+		}
+	}
+
+	private int sendmmsg(int fd, int from, int count, boolean captureErrno) throws IOException {
+		long vector = headers.address() + from * MMSGHDR_SIZE;
+		try {
+			if (captureErrno) {
+				return (int) Syscalls.SENDMMSG_ERRNO.invokeExact(callState, fd, vector, count, MSG_DONTWAIT);
+			}
+			return (int) Syscalls.SENDMMSG.invokeExact(fd, vector, count, MSG_DONTWAIT);
+		} catch (Throwable e) {
+			throw new IOException("sendmmsg() failed", e);
+		}
+	}
+
+	// Only valid straight after a call that captured it
+	private int getErrno() {
+		return callState.get(JAVA_INT, Syscalls.ERRNO_OFFSET);
+	}
+
+	// Returns the file descriptor and address family of the channel's socket
+	private int[] getSocket(DatagramChannel channel) throws IOException {
+		// Once closed, the descriptor may already belong to another socket
+		if (!channel.isOpen()) {
+			throw new ClosedChannelException();
+		}
+
+		int[] socket = sockets.get(channel);
+		if (socket != null) {
+			return socket;
+		}
+
+		int fd;
+		try {
+			fd = (Integer) GET_FD_VAL.invoke(channel);
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Unable to get the socket of "+channel, e);
+		}
+
+		int result;
+		try {
+			optionValue.set(JAVA_INT, 4, 4);
+			result = (int) Syscalls.GETSOCKOPT.invokeExact(callState, fd, SOL_SOCKET, SO_DOMAIN,
+					optionValue.address(), optionValue.address() + 4);
+		} catch (Throwable e) {
+			throw new IOException("getsockopt() failed", e);
+		}
+		if (result != 0) {
+			throw new IOException("getsockopt(SO_DOMAIN) failed with errno "+getErrno());
+		}
+
+		socket = new int[] { fd, optionValue.get(JAVA_INT, 0) };
+		sockets.put(channel, socket);
+		return socket;
+	}
+
+	private SocketAddress lookupSource(long name, int length) throws IOException {
+		for (int i = 0; i < SOURCE_CACHE_SIZE; i++) {
+			long cached = (long) i * SOCKADDR_SIZE;
+			if (sourceAddresses[i] != null && sourceNameLengths[i] == length &&
+					MemorySegment.mismatch(names, name, name + length, sourceNames, cached, cached + length) < 0) {
+				return sourceAddresses[i];
+			}
+		}
+
+		SocketAddress address = decode(names, name);
+		int entry = nextSource;
+		nextSource = (nextSource + 1) % SOURCE_CACHE_SIZE;
+		MemorySegment.copy(names, name, sourceNames, (long) entry * SOCKADDR_SIZE, length);
+		sourceNameLengths[entry] = length;
+		sourceAddresses[entry] = address;
+		return address;
+	}
+
+	private static InetSocketAddress decode(MemorySegment names, long name) throws IOException {
+		int family = names.get(JAVA_SHORT, name);
+		int port = Short.toUnsignedInt(names.get(PORT, name + 2));
+
+		if (family == AF_INET) {
+			byte[] address = new byte[4];
+			MemorySegment.copy(names, JAVA_BYTE, name + 4, address, 0, address.length);
+			return new InetSocketAddress(InetAddress.getByAddress(address), port);
+		}
+		else if (family == AF_INET6) {
+			// IPv4-mapped addresses come back as plain IPv4 ones, like the JDK's own
+			byte[] address = new byte[16];
+			MemorySegment.copy(names, JAVA_BYTE, name + 8, address, 0, address.length);
+			InetAddress inetAddress = InetAddress.getByAddress(address);
+			int scopeId = names.get(JAVA_INT, name + 24);
+			if (inetAddress instanceof Inet6Address && scopeId != 0) {
+				inetAddress = Inet6Address.getByAddress(null, address, scopeId);
+			}
+			return new InetSocketAddress(inetAddress, port);
+		}
+		throw new IOException("Unexpected address family: "+family);
+	}
+
+	private TargetName getTargetName(SocketAddress target, int family) throws IOException {
+		TargetName name = targetNames.get(target);
+		if (name != null && name.family == family) {
+			return name;
+		}
+
+		InetSocketAddress address = (InetSocketAddress) target;
+		if (address.isUnresolved()) {
+			throw new IOException("Unresolved address: "+address);
+		}
+		byte[] bytes = address.getAddress().getAddress();
+
+		MemorySegment segment = Arena.ofAuto().allocate(SOCKADDR_SIZE, 8);
+		if (family == AF_INET) {
+			if (bytes.length != 4) {
+				throw new IOException("Can't send to "+address+" from an IPv4 socket");
+			}
+			segment.set(JAVA_SHORT, 0, (short) AF_INET);
+			segment.set(PORT, 2, (short) address.getPort());
+			MemorySegment.copy(bytes, 0, segment, JAVA_BYTE, 4, bytes.length);
+			name = new TargetName(segment, SOCKADDR_IN_SIZE, family);
+		}
+		else {
+			segment.set(JAVA_SHORT, 0, (short) AF_INET6);
+			segment.set(PORT, 2, (short) address.getPort());
+			if (bytes.length == 4) {
+				// ::ffff:a.b.c.d
+				segment.set(JAVA_BYTE, 18, (byte) 0xff);
+				segment.set(JAVA_BYTE, 19, (byte) 0xff);
+				MemorySegment.copy(bytes, 0, segment, JAVA_BYTE, 20, bytes.length);
+			}
+			else {
+				MemorySegment.copy(bytes, 0, segment, JAVA_BYTE, 8, bytes.length);
+				segment.set(JAVA_INT, 24, ((Inet6Address) address.getAddress()).getScopeId());
+			}
+			name = new TargetName(segment, SOCKADDR_SIZE, family);
+		}
+
+		targetNames.put(target, name);
+		return name;
+	}
+}
@@ -0,0 +1,55 @@
+package com.limelight.nvstream.http;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmlpull.v1.XmlPullParserException;
+
+import opengferelay.bench.Payloads;
+
+// Field extraction from GFE responses. This lives in NvHTTP's package
+// since getXmlString() isn't public.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class XmlParseBenchmark {
+    private String serverInfo;
+    private String appList;
+
+    @Setup
+    public void setup() throws IOException {
+        serverInfo = Payloads.load("serverinfo.xml");
+        appList = Payloads.load("applist.xml");
+    }
+
+    @Benchmark
+    public String getXmlStringServerInfo() throws XmlPullParserException, IOException {
+        return NvHTTP.getXmlString(serverInfo, "PairStatus");
+    }
+
+    // What callers did before XmlResponse: one parse per field
+    @Benchmark
+    public void getXmlStringTwoFields(Blackhole bh) throws XmlPullParserException, IOException {
+        bh.consume(NvHTTP.getXmlString(serverInfo, "appversion"));
+        bh.consume(NvHTTP.getXmlString(serverInfo, "PairStatus"));
+    }
+
+    @Benchmark
+    public XmlResponse parseServerInfoTwoFields() throws XmlPullParserException, IOException {
+        return XmlResponse.parse(serverInfo, "appversion", "PairStatus");
+    }
+
+    // Worst case where the field is never found and the whole document is read
+    @Benchmark
+    public String getXmlStringAppListMissing() throws XmlPullParserException, IOException {
+        return NvHTTP.getXmlString(appList, "missing");
+    }
+}
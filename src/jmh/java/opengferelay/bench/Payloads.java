@@ -0,0 +1,56 @@
+package opengferelay.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+
+// Shared fixtures for the benchmarks. The XML payloads are captured from
+// GFE and live in src/jmh/resources.
+public class Payloads {
+	public static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+	private Payloads() {}
+
+	public static String load(String name) throws IOException {
+		try (InputStream in = Payloads.class.getResourceAsStream("/"+name)) {
+			if (in == null) {
+				throw new IOException("Missing payload: "+name);
+			}
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int bytesRead;
+			while ((bytesRead = in.read(buf)) > 0) {
+				out.write(buf, 0, bytesRead);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	// The relays don't take an ephemeral port, so find one that's free right now
+	public static int findFreeTcpPort() throws IOException {
+		try (ServerSocket ss = new ServerSocket(0)) {
+			return ss.getLocalPort();
+		}
+	}
+
+	public static int findFreeUdpPort() throws IOException {
+		try (DatagramSocket ds = new DatagramSocket(0)) {
+			return ds.getLocalPort();
+		}
+	}
+
+	// Discards everything written to it
+	public static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {}
+
+		@Override
+		public void write(byte[] b, int off, int len) {}
+	}
+}
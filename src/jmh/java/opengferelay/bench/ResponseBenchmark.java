@@ -0,0 +1,70 @@
+package opengferelay.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.veryquick.embweb.Response;
+
+// Serializing responses the way EmbeddedServer writes them to a client.
+// The output is discarded so only the serialization itself is measured.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResponseBenchmark {
+	@Param({"512", "16384"})
+	public int bodySize;
+
+	private final OutputStream sink = new Payloads.NullOutputStream();
+	private String textBody;
+	private byte[] binaryBody;
+
+	@Setup
+	public void setup() {
+		char[] chars = new char[bodySize];
+		Arrays.fill(chars, 'x');
+		textBody = new String(chars);
+		binaryBody = new byte[bodySize];
+	}
+
+	@Benchmark
+	public Response textContent() throws IOException {
+		Response resp = new Response();
+		resp.setContentType("text/xml");
+		resp.addContent(textBody);
+		resp.setOk();
+		resp.writeToStream(sink, true);
+		return resp;
+	}
+
+	@Benchmark
+	public Response streamingContent() throws IOException {
+		Response resp = new Response();
+		resp.setContentType("image/png");
+		resp.addHeader("ETag", "\"0123456789abcdef\"");
+		resp.setStreamingContent(new ByteArrayInputStream(binaryBody), binaryBody.length);
+		resp.setOk();
+		resp.writeToStream(sink, true);
+		return resp;
+	}
+
+	@Benchmark
+	public Response chunkedContent() throws IOException {
+		Response resp = new Response();
+		resp.setContentType("image/png");
+		resp.setStreamingContent(new ByteArrayInputStream(binaryBody), -1);
+		resp.setOk();
+		resp.writeToStream(sink, true);
+		return resp;
+	}
+}
@@ -0,0 +1,93 @@
+package opengferelay.bench;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import opengferelay.simplerelay.TcpRelay;
+import opengferelay.simplerelay.TcpRelayOptions;
+
+// Bulk data through a TcpRelay to an echo endpoint and back on loopback.
+// Each operation moves one chunk in both directions, so the throughput
+// in bytes is ops/s * chunkSize * 2.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TcpRelayBenchmark {
+	@Param({"SPLICE", "STREAM"})
+	public TcpRelayOptions.Mode mode;
+
+	@Param({"16384", "65536"})
+	public int chunkSize;
+
+	private ServerSocket echo;
+	private Socket client;
+	private OutputStream out;
+	private DataInputStream in;
+	private byte[] sendBuffer;
+	private byte[] receiveBuffer;
+
+	@Setup
+	public void setup() throws IOException {
+		echo = new ServerSocket(0, 50, Payloads.LOOPBACK);
+		Thread echoThread = new Thread("TCP echo") {
+			@Override
+			public void run() {
+				try (Socket s = echo.accept()) {
+					InputStream in = s.getInputStream();
+					OutputStream out = s.getOutputStream();
+					byte[] buf = new byte[65536];
+					int bytesRead;
+					while ((bytesRead = in.read(buf)) > 0) {
+						out.write(buf, 0, bytesRead);
+					}
+				} catch (IOException e) {
+					// Closed by tearDown()
+				}
+			}
+		};
+		echoThread.setDaemon(true);
+		echoThread.start();
+
+		// There's no way to stop a relay, but each trial runs in its own forked JVM
+		int relayPort = Payloads.findFreeTcpPort();
+		TcpRelay.startRelay(relayPort, echo.getLocalSocketAddress(), new TcpRelayOptions().setMode(mode));
+
+		client = new Socket();
+		client.setTcpNoDelay(true);
+		client.connect(new InetSocketAddress(Payloads.LOOPBACK, relayPort));
+		out = client.getOutputStream();
+		in = new DataInputStream(client.getInputStream());
+
+		sendBuffer = new byte[chunkSize];
+		receiveBuffer = new byte[chunkSize];
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		client.close();
+		echo.close();
+	}
+
+	@Benchmark
+	public byte[] echoChunk() throws IOException {
+		out.write(sendBuffer);
+		in.readFully(receiveBuffer);
+		return receiveBuffer;
+	}
+}
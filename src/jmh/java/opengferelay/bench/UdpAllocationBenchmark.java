@@ -0,0 +1,139 @@
+package opengferelay.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import opengferelay.simplerelay.UdpRelay;
+import opengferelay.simplerelay.UdpRelayOptions;
+
+// Checks that forwarding a datagram allocates nothing in steady state.
+// Unlike UdpRelayBenchmark, the client and echo endpoint use channels and
+// direct buffers so they don't allocate either, which means the normalized
+// allocation rate from the GC profiler is the relay's own:
+//   ./gradlew jmh -PjmhIncludes=UdpAllocationBenchmark -PjmhProfilers=gc
+// gc.alloc.rate.norm should be (close to) 0 B/op. The relay thread's own
+// allocation per forwarded datagram is also printed after each iteration.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UdpAllocationBenchmark {
+	@Param({"64", "1200"})
+	public int payloadSize;
+
+	@Param({"plain", "burst", "mmsg"})
+	public String engine;
+
+	private DatagramChannel echo;
+	private Thread echoThread;
+	private DatagramChannel client;
+	private ByteBuffer sendBuffer;
+	private ByteBuffer receiveBuffer;
+
+	private com.sun.management.ThreadMXBean threadBean;
+	private long relayThreadId = -1;
+	private long iterationStartBytes;
+	private long forwarded;
+
+	@Setup
+	public void setup() throws IOException {
+		echo = DatagramChannel.open();
+		echo.bind(new InetSocketAddress(Payloads.LOOPBACK, 0));
+		echoThread = new Thread("UDP echo") {
+			@Override
+			public void run() {
+				ByteBuffer buf = ByteBuffer.allocateDirect(1500);
+				try {
+					for (;;) {
+						buf.clear();
+						SocketAddress source = echo.receive(buf);
+						buf.flip();
+						echo.send(buf, source);
+					}
+				} catch (IOException e) {
+					// Closed by tearDown()
+				}
+			}
+		};
+		echoThread.setDaemon(true);
+		echoThread.start();
+
+		// There's no way to stop a relay, but each trial runs in its own forked JVM.
+		// A dedicated loop gives the relay a thread of its own that we can find by
+		// name, rather than one of the shared loops, most of which sit idle.
+		int relayPort = Payloads.findFreeUdpPort();
+		UdpRelay.startRelay(relayPort, echo.getLocalAddress(),
+				new UdpRelayOptions()
+						.setBurstMode(!engine.equals("plain"))
+						.setNativeBatching(engine.equals("mmsg"))
+						.setDedicatedLoop(true));
+
+		// Connected, so reads only see the relay and writes need no address
+		client = DatagramChannel.open();
+		client.bind(new InetSocketAddress(Payloads.LOOPBACK, 0));
+		client.connect(new InetSocketAddress(Payloads.LOOPBACK, relayPort));
+
+		sendBuffer = ByteBuffer.allocateDirect(payloadSize);
+		receiveBuffer = ByteBuffer.allocateDirect(1500);
+
+		threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		String relayThreadName = "UDP relay "+relayPort;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(relayThreadName)) {
+				relayThreadId = thread.getId();
+			}
+		}
+		if (relayThreadId < 0) {
+			System.err.println("Warning: Relay thread \""+relayThreadName+"\" not found, so its allocation isn't reported");
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void startIteration() {
+		forwarded = 0;
+		if (relayThreadId >= 0) {
+			iterationStartBytes = threadBean.getThreadAllocatedBytes(relayThreadId);
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void endIteration() {
+		if (relayThreadId >= 0 && forwarded != 0) {
+			long bytes = threadBean.getThreadAllocatedBytes(relayThreadId) - iterationStartBytes;
+			System.out.printf(" (relay thread: %.3f B/datagram)", bytes / (double) forwarded);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		client.close();
+		echo.close();
+	}
+
+	// Each round trip is two forwarded datagrams, one in each direction
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	public int roundTrip() throws IOException {
+		sendBuffer.clear();
+		client.write(sendBuffer);
+
+		receiveBuffer.clear();
+		int bytes = client.read(receiveBuffer);
+		forwarded += 2;
+		return bytes;
+	}
+}
@@ -0,0 +1,125 @@
+package opengferelay.bench;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import opengferelay.simplerelay.UdpRelay;
+import opengferelay.simplerelay.UdpRelayOptions;
+
+// Datagrams from a client socket through a UdpRelay to an echo endpoint
+// and back, all on loopback. roundTrip measures latency of a single
+// datagram; burst keeps a window of datagrams in flight.
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UdpRelayBenchmark {
+	private static final int BURST = 16;
+	private static final int RECEIVE_TIMEOUT_MS = 200;
+
+	@Param({"64", "1200"})
+	public int payloadSize;
+
+	@Param({"plain", "burst", "mmsg"})
+	public String engine;
+
+	private DatagramSocket echo;
+	private Thread echoThread;
+	private DatagramSocket client;
+	private DatagramPacket sendPacket;
+	private DatagramPacket receivePacket;
+
+	// Datagrams that never came back, which loopback can drop when buffers overflow
+	private long lost;
+
+	@Setup
+	public void setup() throws IOException {
+		echo = new DatagramSocket(new InetSocketAddress(Payloads.LOOPBACK, 0));
+		echoThread = new Thread("UDP echo") {
+			@Override
+			public void run() {
+				DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+				try {
+					for (;;) {
+						packet.setLength(1500);
+						echo.receive(packet);
+						echo.send(packet);
+					}
+				} catch (IOException e) {
+					// Closed by tearDown()
+				}
+			}
+		};
+		echoThread.setDaemon(true);
+		echoThread.start();
+
+		// There's no way to stop a relay, but each trial runs in its own forked JVM
+		int relayPort = Payloads.findFreeUdpPort();
+		UdpRelay.startRelay(relayPort, echo.getLocalSocketAddress(),
+				new UdpRelayOptions()
+						.setBurstMode(!engine.equals("plain"))
+						.setNativeBatching(engine.equals("mmsg")));
+
+		client = new DatagramSocket(new InetSocketAddress(Payloads.LOOPBACK, 0));
+		client.setSoTimeout(RECEIVE_TIMEOUT_MS);
+		client.connect(new InetSocketAddress(Payloads.LOOPBACK, relayPort));
+
+		sendPacket = new DatagramPacket(new byte[payloadSize], payloadSize);
+		receivePacket = new DatagramPacket(new byte[1500], 1500);
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (lost != 0) {
+			System.out.println("Lost datagrams: "+lost);
+		}
+		client.close();
+		echo.close();
+	}
+
+	private int receive() throws IOException {
+		receivePacket.setLength(1500);
+		try {
+			client.receive(receivePacket);
+			return receivePacket.getLength();
+		} catch (SocketTimeoutException e) {
+			lost++;
+			return 0;
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+	public int roundTrip() throws IOException {
+		client.send(sendPacket);
+		return receive();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OperationsPerInvocation(BURST)
+	public int burst() throws IOException {
+		for (int i = 0; i < BURST; i++) {
+			client.send(sendPacket);
+		}
+
+		int bytes = 0;
+		for (int i = 0; i < BURST; i++) {
+			bytes += receive();
+		}
+		return bytes;
+	}
+}
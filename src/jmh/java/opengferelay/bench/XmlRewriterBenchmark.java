@@ -0,0 +1,46 @@
+package opengferelay.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xmlpull.v1.XmlPullParserException;
+
+import opengferelay.https.HttpsRelay;
+import opengferelay.https.XmlRewriter;
+
+// The /serverinfo rewrite that HttpsRelay applies, and the cost of copying
+// a larger /applist document through the same rewriter untouched.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class XmlRewriterBenchmark {
+	private String serverInfo;
+	private String appList;
+	private XmlRewriter rewriter;
+
+	@Setup
+	public void setup() throws IOException {
+		serverInfo = Payloads.load("serverinfo.xml");
+		appList = Payloads.load("applist.xml");
+
+		rewriter = HttpsRelay.createServerInfoRewriter("10.0.0.2", "198.51.100.7");
+	}
+
+	@Benchmark
+	public String rewriteServerInfo() throws XmlPullParserException, IOException {
+		return rewriter.rewrite(new StringReader(serverInfo));
+	}
+
+	@Benchmark
+	public String copyAppList() throws XmlPullParserException, IOException {
+		return rewriter.rewrite(new StringReader(appList));
+	}
+}
@@ -0,0 +1,377 @@
+package opengferelay.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.KeyStore;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.veryquick.embweb.EmbeddedServer;
+import org.veryquick.embweb.HttpRequestHandler;
+import org.veryquick.embweb.Request;
+import org.veryquick.embweb.Response;
+import org.veryquick.embweb.ServerConfig;
+
+import com.limelight.nvstream.http.NvHTTP;
+
+import opengferelay.ConnectionExecutors;
+import opengferelay.https.GfeKeyProvider;
+
+// Imitates the parts of a GameStream host that the relay talks to, on the
+// standard GFE ports shifted by portOffset so it can share a box with the
+// relay. The XML responses have the shape GFE uses, but pairing only goes
+// through the motions and can't actually complete.
+//
+// Clients start receiving the synthetic video and audio streams once they
+// send a datagram to the stream port, and keep receiving them for as long
+// as they keep pinging. Every stream packet starts with a sequence number
+// and the System.nanoTime() it was sent at.
+public class GfeStandIn {
+	public static final int INPUT_PORT = 35043;
+	public static final int CONTROL_PORT = 47995;
+	public static final int CONTROL_UDP_PORT = 47999;
+	public static final int RTSP_PORT = 48010;
+	public static final int VIDEO_PORT = 47998;
+	public static final int AUDIO_PORT = 48000;
+	public static final int MIC_PORT = 48002;
+
+	// Stop streaming to a client that hasn't pinged for this long
+	private static final long STREAM_TIMEOUT_MS = 5000;
+
+	private static final String SERVER_UNIQUE_ID = "1E4F7A3C9D2B8E60";
+
+	private final int portOffset;
+	private final StreamProfile videoProfile;
+	private final StreamProfile audioProfile;
+	private final int appCount;
+	private final long responseDelayMs;
+	private final byte[] boxArt;
+	private final ExecutorService executor = ConnectionExecutors.newConnectionExecutor("GFE stand-in");
+
+	private volatile int currentGame;
+
+	public GfeStandIn(int portOffset, StreamProfile videoProfile, StreamProfile audioProfile,
+			int appCount, long responseDelayMs) {
+		this.portOffset = portOffset;
+		this.videoProfile = videoProfile;
+		this.audioProfile = audioProfile;
+		this.appCount = appCount;
+		this.responseDelayMs = responseDelayMs;
+
+		// Just enough to look like a PNG
+		boxArt = new byte[32 * 1024];
+		new Random(0).nextBytes(boxArt);
+		byte[] pngSignature = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+		System.arraycopy(pngSignature, 0, boxArt, 0, pngSignature.length);
+	}
+
+	public int getPortOffset() {
+		return portOffset;
+	}
+
+	public void start() throws Exception {
+		HttpRequestHandler handler = new HttpRequestHandler() {
+			@Override
+			public Response handleRequest(Type type, String url, Map<String, String> parameters) {
+				return handleRequest(new Request(type, url, parameters, null, null));
+			}
+
+			@Override
+			public Response handleRequest(Request request) {
+				return handleHttpRequest(request);
+			}
+		};
+		EmbeddedServer.createInstance(NvHTTP.HTTPS_PORT + portOffset, createSslContext(), handler,
+				new ServerConfig().setExecutor(executor));
+		EmbeddedServer.createInstance(NvHTTP.HTTP_PORT + portOffset, null, handler,
+				new ServerConfig().setExecutor(executor));
+
+		startTcpEcho(INPUT_PORT + portOffset);
+		startTcpEcho(CONTROL_PORT + portOffset);
+		startTcpEcho(RTSP_PORT + portOffset);
+
+		startUdpEcho(CONTROL_UDP_PORT + portOffset);
+		startUdpEcho(RTSP_PORT + portOffset);
+		startUdpEcho(MIC_PORT + portOffset);
+
+		startStream("video", VIDEO_PORT + portOffset, videoProfile);
+		startStream("audio", AUDIO_PORT + portOffset, audioProfile);
+
+		System.out.println("GFE stand-in started with port offset "+portOffset);
+	}
+
+	private static SSLContext createSslContext() throws Exception {
+		GfeKeyProvider keyProvider = new GfeKeyProvider();
+		char[] password = new char[0];
+
+		KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		keyStore.load(null, null);
+		keyStore.setKeyEntry("gfe", keyProvider.getServerPrivateKey(), password,
+				keyProvider.getServerCertificateChain());
+
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, password);
+
+		SSLContext sc = SSLContext.getInstance("TLS");
+		sc.init(kmf.getKeyManagers(), null, null);
+		return sc;
+	}
+
+	private Response handleHttpRequest(Request request) {
+		String url = request.getUrl();
+		Map<String, String> parameters = request.getParameters();
+		Response resp = new Response();
+
+		if (responseDelayMs > 0) {
+			try {
+				Thread.sleep(responseDelayMs);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (url.startsWith("/serverinfo")) {
+			setXmlContent(resp, getServerInfo());
+		}
+		else if (url.startsWith("/applist")) {
+			setXmlContent(resp, getAppList());
+		}
+		else if (url.startsWith("/appasset")) {
+			resp.setContentType("image/png");
+			resp.setBinaryContent(boxArt);
+			resp.setOk();
+		}
+		else if (url.startsWith("/pair")) {
+			if ("getservercert".equals(parameters.get("phrase"))) {
+				setXmlContent(resp, "<paired>1</paired><plaincert></plaincert>");
+			}
+			else {
+				setXmlContent(resp, "<paired>1</paired>");
+			}
+		}
+		else if (url.startsWith("/unpair")) {
+			setXmlContent(resp, "");
+		}
+		else if (url.startsWith("/launch") || url.startsWith("/resume")) {
+			String appId = parameters.get("appid");
+			if (appId != null) {
+				try {
+					currentGame = Integer.parseInt(appId);
+				} catch (NumberFormatException e) {}
+			}
+			setXmlContent(resp, "<gamesession>1</gamesession><sessionUrl0>rtsp://127.0.0.1:"+
+					(RTSP_PORT + portOffset)+"</sessionUrl0>");
+		}
+		else if (url.startsWith("/cancel")) {
+			currentGame = 0;
+			setXmlContent(resp, "<cancel>1</cancel>");
+		}
+		else {
+			resp.setNotFound(url);
+		}
+
+		return resp;
+	}
+
+	private static void setXmlContent(Response resp, String fields) {
+		resp.setContentType("text/xml");
+		resp.addContent("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+		resp.addContent("<root protocol_version=\"0.1\" status_code=\"200\" status_message=\"OK\">");
+		resp.addContent(fields);
+		resp.addContent("</root>\n");
+		resp.setOk();
+	}
+
+	private String getServerInfo() {
+		int game = currentGame;
+		return "<hostname>GFE-STANDIN</hostname>"+
+				"<appversion>7.1.431.0</appversion>"+
+				"<GfeVersion>3.23.0.74</GfeVersion>"+
+				"<uniqueid>"+SERVER_UNIQUE_ID+"</uniqueid>"+
+				"<HttpsPort>"+(NvHTTP.HTTPS_PORT + portOffset)+"</HttpsPort>"+
+				"<ExternalPort>"+(NvHTTP.HTTP_PORT + portOffset)+"</ExternalPort>"+
+				"<mac>02:00:00:00:00:01</mac>"+
+				"<MaxLumaPixelsHEVC>1869449984</MaxLumaPixelsHEVC>"+
+				"<LocalIP>127.0.0.1</LocalIP>"+
+				"<ServerCodecModeSupport>3843</ServerCodecModeSupport>"+
+				"<SupportedDisplayMode>"+
+				"<DisplayMode><Width>3840</Width><Height>2160</Height><RefreshRate>60</RefreshRate></DisplayMode>"+
+				"<DisplayMode><Width>1920</Width><Height>1080</Height><RefreshRate>60</RefreshRate></DisplayMode>"+
+				"</SupportedDisplayMode>"+
+				"<PairStatus>1</PairStatus>"+
+				"<currentgame>"+game+"</currentgame>"+
+				"<state>"+(game != 0 ? "MJOLNIR_STATE_SERVER_BUSY" : "MJOLNIR_STATE_SERVER_AVAILABLE")+"</state>"+
+				"<numofapps>"+appCount+"</numofapps>"+
+				"<gputype>NVIDIA GeForce RTX 3080</gputype>"+
+				"<ExternalIP>127.0.0.1</ExternalIP>";
+	}
+
+	private String getAppList() {
+		StringBuilder apps = new StringBuilder();
+		for (int i = 0; i < appCount; i++) {
+			apps.append("<App><AppTitle>Game ").append(i + 1).append("</AppTitle>");
+			apps.append("<ID>").append(1000 + i).append("</ID>");
+			apps.append("<IsHdrSupported>0</IsHdrSupported>");
+			apps.append("<IsRunning>").append(currentGame == 1000 + i ? 1 : 0).append("</IsRunning></App>");
+		}
+		return apps.toString();
+	}
+
+	private void startTcpEcho(int port) throws IOException {
+		final ServerSocket serverSocket = new ServerSocket(port);
+		Thread acceptThread = new Thread("TCP echo "+port) {
+			@Override
+			public void run() {
+				for (;;) {
+					final Socket s;
+					try {
+						s = serverSocket.accept();
+						s.setTcpNoDelay(true);
+					} catch (IOException e) {
+						e.printStackTrace();
+						return;
+					}
+
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							byte[] buf = new byte[16384];
+							try (Socket socket = s) {
+								InputStream in = socket.getInputStream();
+								OutputStream out = socket.getOutputStream();
+								int bytesRead;
+								while ((bytesRead = in.read(buf)) > 0) {
+									out.write(buf, 0, bytesRead);
+								}
+							} catch (IOException e) {
+								// Client went away
+							}
+						}
+					});
+				}
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	private void startUdpEcho(int port) throws IOException {
+		final DatagramSocket socket = new DatagramSocket(port);
+		Thread thread = new Thread("UDP echo "+port) {
+			@Override
+			public void run() {
+				DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+				try {
+					for (;;) {
+						packet.setLength(1500);
+						socket.receive(packet);
+						socket.send(packet);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static class StreamSession {
+		volatile long lastPing;
+		long sequence;
+	}
+
+	private void startStream(String name, int port, final StreamProfile profile) throws IOException {
+		final DatagramChannel channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		final ConcurrentHashMap<SocketAddress, StreamSession> sessions = new ConcurrentHashMap<>();
+
+		Thread receiveThread = new Thread(name+" stream pings") {
+			@Override
+			public void run() {
+				ByteBuffer buf = ByteBuffer.allocate(1500);
+				try {
+					for (;;) {
+						buf.clear();
+						SocketAddress source = channel.receive(buf);
+						StreamSession session = sessions.get(source);
+						if (session == null) {
+							session = new StreamSession();
+							StreamSession existing = sessions.putIfAbsent(source, session);
+							if (existing != null) {
+								session = existing;
+							}
+						}
+						session.lastPing = System.nanoTime();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		receiveThread.setDaemon(true);
+		receiveThread.start();
+
+		Thread sendThread = new Thread(name+" stream") {
+			@Override
+			public void run() {
+				ByteBuffer packet = ByteBuffer.allocateDirect(profile.getPacketSize());
+				long frameInterval = profile.getFrameIntervalNanos();
+				long timeoutNs = TimeUnit.MILLISECONDS.toNanos(STREAM_TIMEOUT_MS);
+				long nextFrame = System.nanoTime();
+
+				for (;;) {
+					long now = System.nanoTime();
+					if (nextFrame - now > 0) {
+						LockSupport.parkNanos(nextFrame - now);
+						continue;
+					}
+
+					// Don't try to catch up if we fell behind, just report it through the latency
+					nextFrame = Math.max(nextFrame + frameInterval, now);
+
+					Iterator<Map.Entry<SocketAddress, StreamSession>> iterator = sessions.entrySet().iterator();
+					while (iterator.hasNext()) {
+						Map.Entry<SocketAddress, StreamSession> entry = iterator.next();
+						StreamSession session = entry.getValue();
+						if (now - session.lastPing > timeoutNs) {
+							iterator.remove();
+							continue;
+						}
+
+						for (int i = 0; i < profile.getPacketsPerFrame(); i++) {
+							packet.clear();
+							packet.putLong(0, session.sequence++);
+							packet.putLong(8, System.nanoTime());
+							try {
+								channel.send(packet, entry.getKey());
+							} catch (IOException e) {
+								e.printStackTrace();
+								break;
+							}
+						}
+					}
+				}
+			}
+		};
+		sendThread.setDaemon(true);
+		sendThread.start();
+	}
+}
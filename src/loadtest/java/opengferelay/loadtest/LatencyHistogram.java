@@ -0,0 +1,82 @@
+package opengferelay.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear histogram of latencies in microseconds. Values below 64us get
+// their own bucket, and larger values keep about 3% precision, which is
+// plenty for percentiles without storing every sample. Safe for concurrent
+// recording from many client threads.
+public class LatencyHistogram {
+	private static final int LINEAR_BUCKETS = 64;
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = LINEAR_BUCKETS + (64 - 6) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void recordNanos(long nanos) {
+		record(Math.max(0, nanos) / 1000);
+	}
+
+	public void record(long micros) {
+		counts.incrementAndGet(bucketOf(micros));
+		count.incrementAndGet();
+
+		long currentMax;
+		while ((currentMax = max.get()) < micros && !max.compareAndSet(currentMax, micros));
+	}
+
+	private static int bucketOf(long micros) {
+		if (micros < LINEAR_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - 6) * SUB_BUCKETS + subBucket;
+	}
+
+	// Lowest value that falls into the bucket
+	private static long bucketValue(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 6;
+		int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	// percentile is in [0, 100]
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return bucketValue(i);
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public String toString() {
+		return "n="+getCount()+" p50="+getPercentile(50)+"us p90="+getPercentile(90)+"us p99="+getPercentile(99)+
+				"us p99.9="+getPercentile(99.9)+"us max="+getMax()+"us";
+	}
+}
@@ -0,0 +1,319 @@
+package opengferelay.loadtest;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import com.limelight.nvstream.http.NvHTTP;
+
+import opengferelay.ConnectionExecutors;
+
+// Simulates a number of streaming clients against either the relay or the
+// stand-in directly. Each client receives the video and audio streams,
+// polls /serverinfo over HTTPS and bounces messages off the RTSP port,
+// recording latency, jitter and loss for each.
+//
+// Stream latency is one-way: the stand-in stamps each packet with
+// System.nanoTime(), which only works because both run in one JVM.
+public class LoadGenerator {
+	private static final int RTSP_MESSAGE_SIZE = 256;
+	private static final long PING_INTERVAL_MS = 500;
+	private static final int RECEIVE_TIMEOUT_MS = 200;
+
+	private final InetAddress target;
+	private final int portOffset;
+	private final int clients;
+	private final long durationMs;
+	private final long pollIntervalMs;
+	private final long rtspIntervalMs;
+
+	public static class Results {
+		public final LatencyHistogram videoLatency = new LatencyHistogram();
+		public final LatencyHistogram audioLatency = new LatencyHistogram();
+		public final LatencyHistogram serverInfoLatency = new LatencyHistogram();
+		public final LatencyHistogram rtspRoundTrip = new LatencyHistogram();
+
+		public final StreamTotals video = new StreamTotals();
+		public final StreamTotals audio = new StreamTotals();
+
+		public final AtomicLong httpErrors = new AtomicLong();
+		public final AtomicLong rtspErrors = new AtomicLong();
+	}
+
+	public static class StreamTotals {
+		private final AtomicLong expected = new AtomicLong();
+		private final AtomicLong received = new AtomicLong();
+		private final AtomicLong jitterNanosSum = new AtomicLong();
+		private final AtomicLong jitterNanosMax = new AtomicLong();
+		private final AtomicLong streams = new AtomicLong();
+
+		void add(long expectedPackets, long receivedPackets, long jitterNanos) {
+			expected.addAndGet(expectedPackets);
+			received.addAndGet(receivedPackets);
+			jitterNanosSum.addAndGet(jitterNanos);
+			streams.incrementAndGet();
+
+			long currentMax;
+			while ((currentMax = jitterNanosMax.get()) < jitterNanos && !jitterNanosMax.compareAndSet(currentMax, jitterNanos));
+		}
+
+		public double getLossPercent() {
+			long e = expected.get();
+			return e == 0 ? 0 : 100.0 * Math.max(0, e - received.get()) / e;
+		}
+
+		@Override
+		public String toString() {
+			long n = streams.get();
+			return "received="+received.get()+"/"+expected.get()+
+					" loss="+String.format("%.3f", getLossPercent())+"%"+
+					" jitter(avg)="+(n == 0 ? 0 : jitterNanosSum.get() / n / 1000)+"us"+
+					" jitter(max)="+(jitterNanosMax.get() / 1000)+"us";
+		}
+	}
+
+	// portOffset is 0 when targeting the relay, or the stand-in's offset to measure it directly
+	public LoadGenerator(InetAddress target, int portOffset, int clients, long durationMs,
+			long pollIntervalMs, long rtspIntervalMs) {
+		this.target = target;
+		this.portOffset = portOffset;
+		this.clients = clients;
+		this.durationMs = durationMs;
+		this.pollIntervalMs = pollIntervalMs;
+		this.rtspIntervalMs = rtspIntervalMs;
+	}
+
+	public Results run() throws InterruptedException {
+		final Results results = new Results();
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+		final CountDownLatch done = new CountDownLatch(clients * 4);
+		ExecutorService executor = ConnectionExecutors.newConnectionExecutor("Load client", clients * 4);
+
+		for (int i = 0; i < clients; i++) {
+			final int clientId = i;
+			executor.execute(new ClientTask(done) {
+				@Override
+				void runTask() throws IOException {
+					receiveStream(GfeStandIn.VIDEO_PORT, deadline, results.videoLatency, results.video);
+				}
+			});
+			executor.execute(new ClientTask(done) {
+				@Override
+				void runTask() throws IOException {
+					receiveStream(GfeStandIn.AUDIO_PORT, deadline, results.audioLatency, results.audio);
+				}
+			});
+			executor.execute(new ClientTask(done) {
+				@Override
+				void runTask() {
+					pollServerInfo(clientId, deadline, results);
+				}
+			});
+			executor.execute(new ClientTask(done) {
+				@Override
+				void runTask() {
+					bounceRtsp(deadline, results);
+				}
+			});
+		}
+
+		done.await();
+		executor.shutdown();
+		return results;
+	}
+
+	private static abstract class ClientTask implements Runnable {
+		private final CountDownLatch done;
+
+		ClientTask(CountDownLatch done) {
+			this.done = done;
+		}
+
+		abstract void runTask() throws IOException;
+
+		@Override
+		public void run() {
+			try {
+				runTask();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	private void receiveStream(int port, long deadline, LatencyHistogram latency, StreamTotals totals) throws IOException {
+		try (DatagramSocket socket = new DatagramSocket()) {
+			socket.setSoTimeout(RECEIVE_TIMEOUT_MS);
+			socket.setReceiveBufferSize(1024 * 1024);
+
+			DatagramPacket ping = new DatagramPacket(new byte[1], 1, new InetSocketAddress(target, port + portOffset));
+			DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+			ByteBuffer header = ByteBuffer.wrap(packet.getData());
+
+			long firstSequence = -1, maxSequence = -1, received = 0;
+			long lastTransit = 0;
+			double jitter = 0;
+			long nextPing = 0;
+
+			for (;;) {
+				long now = System.nanoTime();
+				if (now - deadline >= 0) {
+					break;
+				}
+				if (now - nextPing >= 0) {
+					socket.send(ping);
+					nextPing = now + TimeUnit.MILLISECONDS.toNanos(PING_INTERVAL_MS);
+				}
+
+				packet.setLength(1500);
+				try {
+					socket.receive(packet);
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+				long receiveTime = System.nanoTime();
+				if (packet.getLength() < StreamProfile.HEADER_SIZE) {
+					continue;
+				}
+
+				long sequence = header.getLong(0);
+				long transit = receiveTime - header.getLong(8);
+				latency.recordNanos(transit);
+
+				// Interarrival jitter as in RFC 3550
+				if (received != 0) {
+					jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+				}
+				lastTransit = transit;
+
+				if (firstSequence < 0) {
+					firstSequence = sequence;
+				}
+				maxSequence = Math.max(maxSequence, sequence);
+				received++;
+			}
+
+			if (firstSequence >= 0) {
+				totals.add(maxSequence - firstSequence + 1, received, (long) jitter);
+			}
+		}
+	}
+
+	private void pollServerInfo(int clientId, long deadline, Results results) {
+		SSLSocketFactory socketFactory = createTrustAllSocketFactory();
+		HostnameVerifier hostnameVerifier = new HostnameVerifier() {
+			@Override
+			public boolean verify(String hostname, SSLSession session) {
+				return true;
+			}
+		};
+		String uniqueId = String.format("%016X", 0x10000 + clientId);
+
+		while (System.nanoTime() - deadline < 0) {
+			long start = System.nanoTime();
+			try {
+				URL url = new URL("https", target.getHostAddress(), NvHTTP.HTTPS_PORT + portOffset,
+						"/serverinfo?uniqueid="+uniqueId+"&uuid="+Long.toHexString(start));
+				HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
+				conn.setSSLSocketFactory(socketFactory);
+				conn.setHostnameVerifier(hostnameVerifier);
+				conn.setConnectTimeout(5000);
+				conn.setReadTimeout(5000);
+
+				if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+					results.httpErrors.incrementAndGet();
+				}
+				// Drain the body so the connection can be kept alive
+				try (InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+					byte[] buf = new byte[4096];
+					while (in != null && in.read(buf) > 0);
+				}
+				results.serverInfoLatency.recordNanos(System.nanoTime() - start);
+			} catch (IOException e) {
+				results.httpErrors.incrementAndGet();
+			}
+
+			sleepUntil(start + TimeUnit.MILLISECONDS.toNanos(pollIntervalMs), deadline);
+		}
+	}
+
+	private void bounceRtsp(long deadline, Results results) {
+		try (Socket socket = new Socket()) {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(5000);
+			socket.connect(new InetSocketAddress(target, GfeStandIn.RTSP_PORT + portOffset), 5000);
+
+			OutputStream out = socket.getOutputStream();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			byte[] message = new byte[RTSP_MESSAGE_SIZE];
+			byte[] reply = new byte[RTSP_MESSAGE_SIZE];
+
+			while (System.nanoTime() - deadline < 0) {
+				long start = System.nanoTime();
+				out.write(message);
+				in.readFully(reply);
+				results.rtspRoundTrip.recordNanos(System.nanoTime() - start);
+
+				sleepUntil(start + TimeUnit.MILLISECONDS.toNanos(rtspIntervalMs), deadline);
+			}
+		} catch (IOException e) {
+			results.rtspErrors.incrementAndGet();
+		}
+	}
+
+	private static void sleepUntil(long wakeTime, long deadline) {
+		long sleepNanos = Math.min(wakeTime, deadline) - System.nanoTime();
+		if (sleepNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// The relay presents a self-signed GFE certificate
+	private static SSLSocketFactory createTrustAllSocketFactory() {
+		TrustManager[] trustAllCerts = new TrustManager[] {
+				new X509TrustManager() {
+					public X509Certificate[] getAcceptedIssuers() {
+						return new X509Certificate[0];
+					}
+					public void checkClientTrusted(X509Certificate[] certs, String authType) {}
+					public void checkServerTrusted(X509Certificate[] certs, String authType) {}
+				}};
+		try {
+			SSLContext sc = SSLContext.getInstance("TLS");
+			sc.init(null, trustAllCerts, new SecureRandom());
+			return sc.getSocketFactory();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
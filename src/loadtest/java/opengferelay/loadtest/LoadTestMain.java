@@ -0,0 +1,140 @@
+package opengferelay.loadtest;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.limelight.nvstream.http.NvHTTP;
+
+import opengferelay.RelayMain;
+import opengferelay.https.HttpsRelay;
+import opengferelay.https.PcCryptoProvider;
+
+// Runs the GFE stand-in, the relay and the load generator in one process
+// over loopback. The relay listens on the standard GFE ports, so those must
+// be free, while the stand-in sits on the same ports shifted by the offset.
+//
+// With --baseline, the load is first run directly against the stand-in so
+// the latency the relay adds can be reported.
+public class LoadTestMain {
+	private static final String[][] OPTIONS = {
+		{ "clients", "10", "number of simulated clients (the UDP relay allows 64 sessions per port)" },
+		{ "duration", "30", "seconds to run each phase" },
+		{ "port-offset", "10000", "offset of the stand-in's ports from the standard GFE ports" },
+		{ "video-kbps", "20000", "video bitrate per client" },
+		{ "video-packet", "1024", "video packet size in bytes" },
+		{ "video-fps", "60", "video frames per second, each sent as a burst" },
+		{ "audio-kbps", "400", "audio bitrate per client" },
+		{ "audio-packet", "256", "audio packet size in bytes" },
+		{ "audio-fps", "200", "audio packets per second" },
+		{ "poll-ms", "1000", "interval between /serverinfo polls per client" },
+		{ "rtsp-ms", "100", "interval between RTSP round trips per client" },
+		{ "gfe-delay-ms", "0", "time the stand-in takes to answer each HTTP request" },
+		{ "apps", "40", "number of apps in /applist" },
+		{ "baseline", "false", "measure the stand-in directly first" },
+	};
+
+	private static void printUsage() {
+		System.out.println("Usage: loadtest [--option=value ...]");
+		for (String[] option : OPTIONS) {
+			System.out.println("  --"+option[0]+" (default "+option[1]+"): "+option[2]);
+		}
+	}
+
+	private static Map<String, String> parseArgs(String[] args) {
+		Map<String, String> values = new HashMap<>();
+		for (String[] option : OPTIONS) {
+			values.put(option[0], option[1]);
+		}
+
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String name = arg.startsWith("--") ? arg.substring(2, equals > 0 ? equals : arg.length()) : null;
+			if (name == null || !values.containsKey(name)) {
+				return null;
+			}
+			values.put(name, equals > 0 ? arg.substring(equals + 1) : "true");
+		}
+		return values;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parseArgs(args);
+		if (options == null) {
+			printUsage();
+			return;
+		}
+
+		int clients = Integer.parseInt(options.get("clients"));
+		long durationMs = Long.parseLong(options.get("duration")) * 1000;
+		int portOffset = Integer.parseInt(options.get("port-offset"));
+		long pollIntervalMs = Long.parseLong(options.get("poll-ms"));
+		long rtspIntervalMs = Long.parseLong(options.get("rtsp-ms"));
+		StreamProfile videoProfile = new StreamProfile(Integer.parseInt(options.get("video-kbps")),
+				Integer.parseInt(options.get("video-packet")), Integer.parseInt(options.get("video-fps")));
+		StreamProfile audioProfile = new StreamProfile(Integer.parseInt(options.get("audio-kbps")),
+				Integer.parseInt(options.get("audio-packet")), Integer.parseInt(options.get("audio-fps")));
+
+		// Must happen before anything initializes TLS
+		HttpsRelay.enableSessionTickets();
+
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+
+		GfeStandIn standIn = new GfeStandIn(portOffset, videoProfile, audioProfile,
+				Integer.parseInt(options.get("apps")), Long.parseLong(options.get("gfe-delay-ms")));
+		standIn.start();
+
+		PcCryptoProvider cryptoProvider = new PcCryptoProvider();
+		String reportedAddress = loopback.getHostAddress();
+		new HttpsRelay(reportedAddress, reportedAddress, loopback,
+				NvHTTP.HTTPS_PORT + portOffset, NvHTTP.HTTP_PORT + portOffset, cryptoProvider)
+				.start(NvHTTP.HTTPS_PORT, true);
+		new HttpsRelay(reportedAddress, reportedAddress, loopback,
+				NvHTTP.HTTPS_PORT + portOffset, NvHTTP.HTTP_PORT + portOffset, cryptoProvider)
+				.start(NvHTTP.HTTP_PORT, false);
+		RelayMain.startStreamRelays(loopback, portOffset);
+
+		System.out.println("Video: "+videoProfile);
+		System.out.println("Audio: "+audioProfile);
+
+		LoadGenerator.Results baseline = null;
+		if (Boolean.parseBoolean(options.get("baseline"))) {
+			System.out.println("Running "+clients+" clients directly against the stand-in");
+			baseline = new LoadGenerator(loopback, portOffset, clients, durationMs,
+					pollIntervalMs, rtspIntervalMs).run();
+			printResults("Direct", baseline);
+		}
+
+		System.out.println("Running "+clients+" clients through the relay");
+		LoadGenerator.Results relayed = new LoadGenerator(loopback, 0, clients, durationMs,
+				pollIntervalMs, rtspIntervalMs).run();
+		printResults("Relayed", relayed);
+
+		if (baseline != null) {
+			System.out.println("=== Added by the relay ===");
+			printAdded("video", baseline.videoLatency, relayed.videoLatency);
+			printAdded("audio", baseline.audioLatency, relayed.audioLatency);
+			printAdded("serverinfo", baseline.serverInfoLatency, relayed.serverInfoLatency);
+			printAdded("rtsp", baseline.rtspRoundTrip, relayed.rtspRoundTrip);
+		}
+
+		// The relays and the stand-in don't have a way to shut down
+		System.exit(0);
+	}
+
+	private static void printResults(String name, LoadGenerator.Results results) {
+		System.out.println("=== "+name+" ===");
+		System.out.println("video latency:      "+results.videoLatency);
+		System.out.println("video stream:       "+results.video);
+		System.out.println("audio latency:      "+results.audioLatency);
+		System.out.println("audio stream:       "+results.audio);
+		System.out.println("serverinfo latency: "+results.serverInfoLatency+" errors="+results.httpErrors.get());
+		System.out.println("rtsp round trip:    "+results.rtspRoundTrip+" errors="+results.rtspErrors.get());
+	}
+
+	private static void printAdded(String name, LatencyHistogram direct, LatencyHistogram relayed) {
+		System.out.println(name+": p50 +"+(relayed.getPercentile(50) - direct.getPercentile(50))+
+				"us p99 +"+(relayed.getPercentile(99) - direct.getPercentile(99))+
+				"us p99.9 +"+(relayed.getPercentile(99.9) - direct.getPercentile(99.9))+"us");
+	}
+}
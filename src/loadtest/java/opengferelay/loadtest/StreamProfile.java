@@ -0,0 +1,47 @@
+package opengferelay.loadtest;
+
+// Shape of a synthetic UDP stream. Each frame is sent as a back-to-back
+// burst of packets, like GFE does for video.
+public class StreamProfile {
+	// Sequence number and send timestamp
+	public static final int HEADER_SIZE = 16;
+
+	private final int bitrateKbps;
+	private final int packetSize;
+	private final int framesPerSecond;
+
+	public StreamProfile(int bitrateKbps, int packetSize, int framesPerSecond) {
+		if (packetSize < HEADER_SIZE || packetSize > 1500) {
+			throw new IllegalArgumentException("Packet size must be between "+HEADER_SIZE+" and 1500: "+packetSize);
+		}
+		this.bitrateKbps = bitrateKbps;
+		this.packetSize = packetSize;
+		this.framesPerSecond = framesPerSecond;
+	}
+
+	public int getBitrateKbps() {
+		return bitrateKbps;
+	}
+
+	public int getPacketSize() {
+		return packetSize;
+	}
+
+	public int getFramesPerSecond() {
+		return framesPerSecond;
+	}
+
+	public int getPacketsPerFrame() {
+		long bytesPerFrame = (long) bitrateKbps * 1000 / 8 / framesPerSecond;
+		return (int) Math.max(1, (bytesPerFrame + packetSize - 1) / packetSize);
+	}
+
+	public long getFrameIntervalNanos() {
+		return 1000000000L / framesPerSecond;
+	}
+
+	@Override
+	public String toString() {
+		return bitrateKbps+" Kbps, "+packetSize+" byte packets, "+framesPerSecond+" fps";
+	}
+}
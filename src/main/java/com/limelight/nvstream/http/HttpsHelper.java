@@ -3,6 +3,7 @@ package com.limelight.nvstream.http;
 import java.io.IOException;
 import java.net.MalformedURLException;
 
+import okhttp3.Response;
 import okhttp3.ResponseBody;
 
 public class HttpsHelper {
@@ -26,4 +27,16 @@ public class HttpsHelper {
 		
 		return bytes;
 	}
+	
+	// The caller is responsible for closing the response body
+	public static Response openHttpResponse(NvHTTP http, String url) throws MalformedURLException, IOException {
+		return openHttpResponse(http, url, false);
+	}
+	
+	public static Response openHttpResponse(NvHTTP http, String url, boolean enableReadTimeout) throws MalformedURLException, IOException {
+		url = http.baseUrlHttps + url;
+		
+		System.out.println("Requesting URL (streaming): "+url);
+		return http.openHttpResponse(url, enableReadTimeout);
+	}
 }
@@ -14,7 +14,6 @@ import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Stack;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -23,13 +22,12 @@ import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509KeyManager;
 import javax.net.ssl.X509TrustManager;
 
-import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 import com.limelight.nvstream.http.PairingManager.PairState;
 
@@ -49,20 +47,36 @@ public class NvHTTP {
     public static final int CONNECTION_TIMEOUT = 3000;
     public static final int READ_TIMEOUT = 5000;
 
+    public static final int DEFAULT_POOL_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_POOL_KEEP_ALIVE_MS = 30000;
+
     public String baseUrlHttps;
     public String baseUrlHttp;
     
     private OkHttpClient httpClient;
     private OkHttpClient httpClientWithReadTimeout;
+    private ConnectionPool connectionPool;
+
+    // When pooling, all requests share one TLS context and these clients
+    // built from it. They're rebuilt if the server certificate changes.
+    private final boolean pooled;
+    private OkHttpClient tlsHttpClient;
+    private OkHttpClient tlsHttpClientWithReadTimeout;
 
     private X509TrustManager trustManager;
     private X509KeyManager keyManager;
 
     void setServerCert(X509Certificate serverCert) {
-    	// Not using cert pinning for OpenGFERelay
+        // Not using cert pinning for OpenGFERelay, but connections and TLS
+        // state established under the old certificate must not be reused
+        synchronized (this) {
+            tlsHttpClient = null;
+            tlsHttpClientWithReadTimeout = null;
+        }
+        connectionPool.evictAll();
     }
 
-    private void initializeHttpState(final LimelightCryptoProvider cryptoProvider) {
+    private void initializeHttpState(final LimelightCryptoProvider cryptoProvider, int maxIdleConnections, long keepAliveMs) {
         keyManager = new X509KeyManager() {
             public String chooseClientAlias(String[] keyTypes,
                     Principal[] issuers, Socket socket) { return "Limelight-RSA"; }
@@ -97,8 +111,9 @@ public class NvHTTP {
             }
         };
 
+        connectionPool = new ConnectionPool(maxIdleConnections, keepAliveMs, TimeUnit.MILLISECONDS);
         httpClient = new OkHttpClient.Builder()
-                .connectionPool(new ConnectionPool(0, 1, TimeUnit.MILLISECONDS))
+                .connectionPool(connectionPool)
                 .hostnameVerifier(hv)
                 .readTimeout(0, TimeUnit.MILLISECONDS)
                 .connectTimeout(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS)
@@ -110,16 +125,39 @@ public class NvHTTP {
     }
     
     public NvHTTP(String address, LimelightCryptoProvider cryptoProvider) throws IOException {
+        this(address, HTTPS_PORT, HTTP_PORT, cryptoProvider, false, 0, 1);
+    }
+
+    // For a server that isn't listening on the standard ports, still without pooling
+    public NvHTTP(String address, int httpsPort, int httpPort, LimelightCryptoProvider cryptoProvider) throws IOException {
+        this(address, httpsPort, httpPort, cryptoProvider, false, 0, 1);
+    }
+
+    // Keeps up to maxIdleConnections idle connections to the server for keepAliveMs
+    // and shares a single TLS context between all requests
+    public NvHTTP(String address, LimelightCryptoProvider cryptoProvider, int maxIdleConnections, long keepAliveMs) throws IOException {
+        this(address, HTTPS_PORT, HTTP_PORT, cryptoProvider, true, maxIdleConnections, keepAliveMs);
+    }
+
+    // Same as above, but for a server that isn't listening on the standard ports
+    public NvHTTP(String address, int httpsPort, int httpPort, LimelightCryptoProvider cryptoProvider,
+                  int maxIdleConnections, long keepAliveMs) throws IOException {
+        this(address, httpsPort, httpPort, cryptoProvider, true, maxIdleConnections, keepAliveMs);
+    }
+
+    private NvHTTP(String address, int httpsPort, int httpPort, LimelightCryptoProvider cryptoProvider,
+                   boolean pooled, int maxIdleConnections, long keepAliveMs) throws IOException {
         // Use the same UID for all Moonlight clients so we can quit games
         // started by other Moonlight clients.
         this.uniqueId = "0123456789ABCDEF";
+        this.pooled = pooled;
 
-        initializeHttpState(cryptoProvider);
+        initializeHttpState(cryptoProvider, maxIdleConnections, keepAliveMs);
 
         try {
             // The URI constructor takes care of escaping IPv6 literals
-            this.baseUrlHttps = new URI("https", null, address, HTTPS_PORT, null, null, null).toString();
-            this.baseUrlHttp = new URI("http", null, address, HTTP_PORT, null, null, null).toString();
+            this.baseUrlHttps = new URI("https", null, address, httpsPort, null, null, null).toString();
+            this.baseUrlHttp = new URI("http", null, address, httpPort, null, null, null).toString();
         } catch (URISyntaxException e) {
             // Encapsulate URISyntaxException into IOException for callers to handle more easily
             throw new IOException(e);
@@ -133,57 +171,16 @@ public class NvHTTP {
     }
     
     static String getXmlString(Reader r, String tagname) throws XmlPullParserException, IOException {
-        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-        factory.setNamespaceAware(true);
-        XmlPullParser xpp = factory.newPullParser();
-
-        xpp.setInput(r);
-        int eventType = xpp.getEventType();
-        Stack<String> currentTag = new Stack<String>();
-        
-        while (eventType != XmlPullParser.END_DOCUMENT) {
-            switch (eventType) {
-            case (XmlPullParser.START_TAG):
-                if (xpp.getName().equals("root")) {
-                    verifyResponseStatus(xpp);
-                }
-                currentTag.push(xpp.getName());
-                break;
-            case (XmlPullParser.END_TAG):
-                currentTag.pop();
-                break;
-            case (XmlPullParser.TEXT):
-                if (currentTag.peek().equals(tagname)) {
-                    return xpp.getText().trim();
-                }
-                break;
-            }
-            eventType = xpp.next();
-        }
-
-        return null;
+        return XmlResponse.parse(r, tagname).get(tagname);
     }
 
     static String getXmlString(String str, String tagname) throws XmlPullParserException, IOException {
         return getXmlString(new StringReader(str), tagname);
     }
     
-    private static void verifyResponseStatus(XmlPullParser xpp) throws GfeHttpResponseException {
-        // We use Long.parseLong() because in rare cases GFE can send back a status code of
-        // 0xFFFFFFFF, which will cause Integer.parseInt() to throw a NumberFormatException due
-        // to exceeding Integer.MAX_VALUE. We'll get the desired error code of -1 by just casting
-        // the resulting long into an int.
-        int statusCode = (int)Long.parseLong(xpp.getAttributeValue(XmlPullParser.NO_NAMESPACE, "status_code"));
-        if (statusCode != 200) {
-            String statusMsg = xpp.getAttributeValue(XmlPullParser.NO_NAMESPACE, "status_message");
-            if (statusCode == -1 && "Invalid".equals(statusMsg)) {
-                // Special case handling an audio capture error which GFE doesn't
-                // provide any useful status message for.
-                statusCode = 418;
-                statusMsg = "Missing audio capture device. Reinstall GeForce Experience.";
-            }
-            throw new GfeHttpResponseException(statusCode, statusMsg);
-        }
+    // Extracts every serverinfo field we use in one pass
+    public XmlResponse parseServerInfo(String serverInfo) throws XmlPullParserException, IOException {
+        return XmlResponse.parse(serverInfo, "appversion", "PairStatus");
     }
     
     public String getServerInfo() throws IOException, XmlPullParserException {
@@ -227,29 +224,52 @@ public class NvHTTP {
         return resp;
     }
 
-    // This hack is Android-specific but we do it on all platforms
-    // because it doesn't really matter
-    private OkHttpClient performAndroidTlsHack(OkHttpClient client) {
-        // Doing this each time we create a socket is required
-        // to avoid the SSLv3 fallback that causes connection failures
+    private SSLContext createSslContext() {
         try {
             SSLContext sc = SSLContext.getInstance("TLS");
             sc.init(new KeyManager[] { keyManager }, new TrustManager[] { trustManager }, new SecureRandom());
-            return client.newBuilder().sslSocketFactory(sc.getSocketFactory(), trustManager).build();
+            return sc;
         } catch (NoSuchAlgorithmException | KeyManagementException e) {
             throw new RuntimeException(e);
         }
     }
 
+    // This hack is Android-specific but we do it on all platforms
+    // because it doesn't really matter
+    private OkHttpClient performAndroidTlsHack(OkHttpClient client) {
+        // Doing this each time we create a socket is required
+        // to avoid the SSLv3 fallback that causes connection failures
+        return client.newBuilder().sslSocketFactory(createSslContext().getSocketFactory(), trustManager).build();
+    }
+
+    private synchronized OkHttpClient getPooledClient(boolean enableReadTimeout) {
+        if (tlsHttpClient == null) {
+            SSLSocketFactory socketFactory = createSslContext().getSocketFactory();
+            tlsHttpClient = httpClient.newBuilder().sslSocketFactory(socketFactory, trustManager).build();
+            tlsHttpClientWithReadTimeout = httpClientWithReadTimeout.newBuilder().sslSocketFactory(socketFactory, trustManager).build();
+        }
+
+        return enableReadTimeout ? tlsHttpClientWithReadTimeout : tlsHttpClient;
+    }
+
     // Read timeout should be enabled for any HTTP query that requires no outside action
     // on the GFE server. Examples of queries that DO require outside action are launch, resume, and quit.
     // The initial pair query does require outside action (user entering a PIN) but subsequent pairing
     // queries do not.
     ResponseBody openHttpConnection(String url, boolean enableReadTimeout) throws IOException {
+        return openHttpResponse(url, enableReadTimeout).body();
+    }
+
+    // Returns the whole successful response so callers can see the headers too.
+    // The caller must close the response body.
+    Response openHttpResponse(String url, boolean enableReadTimeout) throws IOException {
         Request request = new Request.Builder().url(url).get().build();
         Response response;
 
-        if (enableReadTimeout) {
+        if (pooled) {
+            response = getPooledClient(enableReadTimeout).newCall(request).execute();
+        }
+        else if (enableReadTimeout) {
             response = performAndroidTlsHack(httpClientWithReadTimeout).newCall(request).execute();
         }
         else {
@@ -259,7 +279,7 @@ public class NvHTTP {
         ResponseBody body = response.body();
         
         if (response.isSuccessful()) {
-            return body;
+            return response;
         }
         
         // Unsuccessful, so close the response body
@@ -286,12 +306,20 @@ public class NvHTTP {
         return getXmlString(serverInfo, "appversion");
     }
 
+    public String getServerVersion(XmlResponse serverInfo) {
+        return serverInfo.get("appversion");
+    }
+
     public PairingManager.PairState getPairState() throws IOException, XmlPullParserException {
         return getPairState(getServerInfo());
     }
 
     public PairingManager.PairState getPairState(String serverInfo) throws IOException, XmlPullParserException {
-        if (!NvHTTP.getXmlString(serverInfo, "PairStatus").equals("1")) {
+        return getPairState(parseServerInfo(serverInfo));
+    }
+
+    public PairingManager.PairState getPairState(XmlResponse serverInfo) {
+        if (!"1".equals(serverInfo.get("PairStatus"))) {
             return PairState.NOT_PAIRED;
         }
 
@@ -306,7 +334,15 @@ public class NvHTTP {
         return getServerAppVersionQuad(serverInfo)[0];
     }
     
+    public int getServerMajorVersion(XmlResponse serverInfo) {
+        return getServerAppVersionQuad(serverInfo)[0];
+    }
+    
     public int[] getServerAppVersionQuad(String serverInfo) throws XmlPullParserException, IOException {
+        return getServerAppVersionQuad(parseServerInfo(serverInfo));
+    }
+    
+    public int[] getServerAppVersionQuad(XmlResponse serverInfo) {
         String serverVersion = getServerVersion(serverInfo);
         if (serverVersion == null) {
             throw new RuntimeException("Missing server version field");
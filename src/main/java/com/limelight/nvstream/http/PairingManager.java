@@ -61,9 +61,9 @@ public class PairingManager {
         return data;
     }
     
-    private X509Certificate extractPlainCert(String text) throws XmlPullParserException, IOException
+    private X509Certificate extractPlainCert(XmlResponse resp)
     {
-        String certText = NvHTTP.getXmlString(text, "plaincert");
+        String certText = resp.get("plaincert");
         if (certText != null) {
             byte[] certBytes = hexToBytes(certText);
 
@@ -177,6 +177,10 @@ public class PairingManager {
     }
     
     public PairState pair(String serverInfo, String pin) throws IOException, XmlPullParserException {
+        return pair(http.parseServerInfo(serverInfo), pin);
+    }
+    
+    public PairState pair(XmlResponse serverInfo, String pin) throws IOException, XmlPullParserException {
         PairingHashAlgorithm hashAlgo;
 
         int serverMajorVersion = http.getServerMajorVersion(serverInfo);
@@ -198,11 +202,11 @@ public class PairingManager {
         
         // Send the salt and get the server cert. This doesn't have a read timeout
         // because the user must enter the PIN before the server responds
-        String getCert = http.openHttpConnectionToString(http.baseUrlHttp +
+        XmlResponse getCert = XmlResponse.parse(http.openHttpConnectionToString(http.baseUrlHttp +
                 "/pair?"+http.buildUniqueIdUuidString()+"&devicename=roth&updateState=1&phrase=getservercert&salt="+
                 bytesToHex(salt)+"&clientcert="+bytesToHex(pemCertBytes),
-                false);
-        if (!NvHTTP.getXmlString(getCert, "paired").equals("1")) {
+                false), "paired", "plaincert");
+        if (!getCert.get("paired").equals("1")) {
             return PairState.FAILED;
         }
 
@@ -223,16 +227,16 @@ public class PairingManager {
         byte[] encryptedChallenge = encryptAes(randomChallenge, aesKey);
         
         // Send the encrypted challenge to the server
-        String challengeResp = http.openHttpConnectionToString(http.baseUrlHttp + 
+        XmlResponse challengeResp = XmlResponse.parse(http.openHttpConnectionToString(http.baseUrlHttp + 
                 "/pair?"+http.buildUniqueIdUuidString()+"&devicename=roth&updateState=1&clientchallenge="+bytesToHex(encryptedChallenge),
-                true);
-        if (!NvHTTP.getXmlString(challengeResp, "paired").equals("1")) {
+                true), "paired", "challengeresponse");
+        if (!challengeResp.get("paired").equals("1")) {
             http.openHttpConnectionToString(http.baseUrlHttp + "/unpair?"+http.buildUniqueIdUuidString(), true);
             return PairState.FAILED;
         }
         
         // Decode the server's response and subsequent challenge
-        byte[] encServerChallengeResponse = hexToBytes(NvHTTP.getXmlString(challengeResp, "challengeresponse"));
+        byte[] encServerChallengeResponse = hexToBytes(challengeResp.get("challengeresponse"));
         byte[] decServerChallengeResponse = decryptAes(encServerChallengeResponse, aesKey);
         
         byte[] serverResponse = Arrays.copyOfRange(decServerChallengeResponse, 0, hashAlgo.getHashLength());
@@ -242,16 +246,16 @@ public class PairingManager {
         byte[] clientSecret = generateRandomBytes(16);
         byte[] challengeRespHash = hashAlgo.hashData(concatBytes(concatBytes(serverChallenge, cert.getSignature()), clientSecret));
         byte[] challengeRespEncrypted = encryptAes(challengeRespHash, aesKey);
-        String secretResp = http.openHttpConnectionToString(http.baseUrlHttp +
+        XmlResponse secretResp = XmlResponse.parse(http.openHttpConnectionToString(http.baseUrlHttp +
                 "/pair?"+http.buildUniqueIdUuidString()+"&devicename=roth&updateState=1&serverchallengeresp="+bytesToHex(challengeRespEncrypted),
-                true);
-        if (!NvHTTP.getXmlString(secretResp, "paired").equals("1")) {
+                true), "paired", "pairingsecret");
+        if (!secretResp.get("paired").equals("1")) {
             http.openHttpConnectionToString(http.baseUrlHttp + "/unpair?"+http.buildUniqueIdUuidString(), true);
             return PairState.FAILED;
         }
         
         // Get the server's signed secret
-        byte[] serverSecretResp = hexToBytes(NvHTTP.getXmlString(secretResp, "pairingsecret"));
+        byte[] serverSecretResp = hexToBytes(secretResp.get("pairingsecret"));
         byte[] serverSecret = Arrays.copyOfRange(serverSecretResp, 0, 16);
         byte[] serverSignature = Arrays.copyOfRange(serverSecretResp, 16, 272);
 
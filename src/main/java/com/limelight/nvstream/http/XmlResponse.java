@@ -0,0 +1,137 @@
+package com.limelight.nvstream.http;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+// Fields extracted from a GFE XML response in a single pass. The caller names
+// every field it needs up front, and parsing stops as soon as all of them
+// have been seen. A root element carrying a failure status is thrown as a
+// GfeHttpResponseException.
+public class XmlResponse {
+    // Looking up the factory goes through service loading, so only do it once
+    private static XmlPullParserFactory factory;
+
+    // Parsers are reset by setInput(), so each thread keeps one around
+    private static final ThreadLocal<XmlPullParser> parsers = new ThreadLocal<XmlPullParser>();
+
+    private final String[] tagNames;
+    private final String[] values;
+
+    private XmlResponse(String[] tagNames) {
+        this.tagNames = tagNames;
+        this.values = new String[tagNames.length];
+    }
+
+    public static XmlResponse parse(String str, String... tagNames) throws XmlPullParserException, IOException {
+        return parse(new StringReader(str), tagNames);
+    }
+
+    public static XmlResponse parse(Reader r, String... tagNames) throws XmlPullParserException, IOException {
+        XmlResponse response = new XmlResponse(tagNames);
+        XmlPullParser xpp = getParser();
+
+        xpp.setInput(r);
+        try {
+            response.parseFields(xpp);
+        } finally {
+            // Don't hold on to the input between uses
+            xpp.setInput(null);
+        }
+
+        return response;
+    }
+
+    private static synchronized XmlPullParserFactory getFactory() throws XmlPullParserException {
+        if (factory == null) {
+            factory = XmlPullParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+        }
+        return factory;
+    }
+
+    private static XmlPullParser getParser() throws XmlPullParserException {
+        XmlPullParser xpp = parsers.get();
+        if (xpp == null) {
+            xpp = getFactory().newPullParser();
+            parsers.set(xpp);
+        }
+        return xpp;
+    }
+
+    private void parseFields(XmlPullParser xpp) throws XmlPullParserException, IOException {
+        // Only the innermost tag name is ever looked at, so a plain array is enough
+        String[] currentTag = new String[8];
+        int depth = 0;
+        int remaining = tagNames.length;
+
+        int eventType = xpp.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT && remaining > 0) {
+            switch (eventType) {
+            case (XmlPullParser.START_TAG):
+                if (xpp.getName().equals("root")) {
+                    verifyResponseStatus(xpp);
+                }
+                if (depth == currentTag.length) {
+                    currentTag = Arrays.copyOf(currentTag, depth * 2);
+                }
+                currentTag[depth++] = xpp.getName();
+                break;
+            case (XmlPullParser.END_TAG):
+                depth--;
+                break;
+            case (XmlPullParser.TEXT):
+                if (depth > 0) {
+                    int index = indexOf(currentTag[depth - 1]);
+                    if (index >= 0 && values[index] == null) {
+                        values[index] = xpp.getText().trim();
+                        remaining--;
+                    }
+                }
+                break;
+            }
+            eventType = xpp.next();
+        }
+    }
+
+    private int indexOf(String tagName) {
+        for (int i = 0; i < tagNames.length; i++) {
+            if (tagNames[i].equals(tagName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns null if the field wasn't in the response
+    public String get(String tagName) {
+        int index = indexOf(tagName);
+        if (index < 0) {
+            throw new IllegalArgumentException("Field was not requested: "+tagName);
+        }
+        return values[index];
+    }
+
+    private static void verifyResponseStatus(XmlPullParser xpp) throws GfeHttpResponseException {
+        // We use Long.parseLong() because in rare cases GFE can send back a status code of
+        // 0xFFFFFFFF, which will cause Integer.parseInt() to throw a NumberFormatException due
+        // to exceeding Integer.MAX_VALUE. We'll get the desired error code of -1 by just casting
+        // the resulting long into an int.
+        int statusCode = (int)Long.parseLong(xpp.getAttributeValue(XmlPullParser.NO_NAMESPACE, "status_code"));
+        if (statusCode != 200) {
+            String statusMsg = xpp.getAttributeValue(XmlPullParser.NO_NAMESPACE, "status_message");
+            if (statusCode == -1 && "Invalid".equals(statusMsg)) {
+                // Special case handling an audio capture error which GFE doesn't
+                // provide any useful status message for.
+                statusCode = 418;
+                statusMsg = "Missing audio capture device. Reinstall GeForce Experience.";
+            }
+            throw new GfeHttpResponseException(statusCode, statusMsg);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package opengferelay;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Executors for per-connection work. On JDK 21+ every task gets its own
+// virtual thread. On older runtimes we fall back to a bounded pool of
+// platform threads so a connection storm can't exhaust native threads.
+public class ConnectionExecutors {
+	public static final int DEFAULT_MAX_POOL_THREADS = 256;
+
+	private ConnectionExecutors() {}
+
+	public static boolean isVirtualThreadSupported() {
+		return createVirtualThreadFactory("probe") != null;
+	}
+
+	public static ExecutorService newConnectionExecutor(String name) {
+		return newConnectionExecutor(name, DEFAULT_MAX_POOL_THREADS);
+	}
+
+	public static ExecutorService newConnectionExecutor(String name, int maxPoolThreads) {
+		ThreadFactory virtualFactory = createVirtualThreadFactory(name);
+		if (virtualFactory != null) {
+			try {
+				Method newThreadPerTaskExecutor = java.util.concurrent.Executors.class.getMethod(
+						"newThreadPerTaskExecutor", ThreadFactory.class);
+				return (ExecutorService) newThreadPerTaskExecutor.invoke(null, virtualFactory);
+			} catch (ReflectiveOperationException e) {
+				// Fall through to a pool
+			}
+		}
+
+		return newBoundedPool(name, maxPoolThreads);
+	}
+
+	public static ExecutorService newBoundedPool(final String name, int maxThreads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger threadNumber = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name+"-"+threadNumber.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		// Don't keep idle threads around when we're not busy
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	// Equivalent to Thread.ofVirtual().name(name+"-", 0).factory() on JDK 21+.
+	// Returns null if virtual threads are unavailable.
+	private static ThreadFactory createVirtualThreadFactory(String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name+"-", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,553 @@
+package opengferelay;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import opengferelay.simplerelay.TcpRelayOptions;
+import opengferelay.simplerelay.UdpRelayOptions;
+
+// The relay layout and settings. Each layer overrides the one before it:
+//   1. the built-in defaults in relay-defaults.properties
+//   2. a properties file given by --config=<file> or OPENGFERELAY_CONFIG
+//   3. environment variables, named after the key in upper case with dots
+//      as underscores (relay.video.rcvbuf is OPENGFERELAY_RELAY_VIDEO_RCVBUF)
+//   4. --<key>=<value> options on the command line
+//
+// Keys starting with "opengferelay." are the tuning knobs that are otherwise
+// given as -D system properties; see applySystemProperties().
+//
+// Everything is validated up front, and all problems are reported at once.
+public class RelayConfig {
+	private static final String DEFAULTS_RESOURCE = "relay-defaults.properties";
+	private static final String ENV_PREFIX = "OPENGFERELAY_";
+	private static final String CONFIG_ENV = ENV_PREFIX+"CONFIG";
+	private static final String SYSTEM_PROPERTY_PREFIX = "opengferelay.";
+	private static final String RELAY_PREFIX = "relay.";
+
+	private static final List<String> RELAY_SETTINGS = Arrays.asList(
+			"protocol", "port", "bind", "target", "engine", "rcvbuf", "sndbuf", "trafficClass",
+			"dedicatedLoop", "busyPollUs", "burstSize", "maxSessions", "sessionIdleTimeoutMs", "shards",
+			"connectTimeoutMs", "connectAttempts", "connectRetryDelayMs", "maxPendingConnects", "halfCloseTimeoutMs");
+	private static final List<String> UDP_ONLY_SETTINGS = Arrays.asList(
+			"burstSize", "maxSessions", "sessionIdleTimeoutMs", "shards");
+	private static final List<String> TCP_ONLY_SETTINGS = Arrays.asList(
+			"connectTimeoutMs", "connectAttempts", "connectRetryDelayMs", "maxPendingConnects", "halfCloseTimeoutMs");
+
+	private final Properties properties;
+	private final List<String> errors = new ArrayList<>();
+
+	private InetAddress remoteHost;
+	private int remoteHttpsPort;
+	private int remoteHttpPort;
+	private String internalAddress;
+	private String externalAddress;
+	private InetAddress httpBindAddress;
+	private int httpsPort;
+	private int httpPort;
+	private boolean sxsFallback;
+	private int sxsHttpsPort;
+	private int sxsHttpPort;
+	private int metricsPort;
+	private InetAddress metricsBindAddress;
+	private List<RelayEndpoint> relays;
+
+	private RelayConfig(Properties properties) {
+		this.properties = properties;
+		parse();
+		if (!errors.isEmpty()) {
+			StringBuilder message = new StringBuilder("Invalid configuration:");
+			for (String error : errors) {
+				message.append("\n  ").append(error);
+			}
+			throw new IllegalArgumentException(message.toString());
+		}
+	}
+
+	// Accepts --config=<file> and --<key>=<value> options, or the old
+	// positional form: <remote host> <internal address> <external address>
+	public static RelayConfig load(String[] args) throws IOException {
+		String configFile = System.getenv(CONFIG_ENV);
+		Properties overrides = new Properties();
+		List<String> positional = new ArrayList<>();
+
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				positional.add(arg);
+				continue;
+			}
+
+			int equals = arg.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Expected --<key>=<value>: "+arg);
+			}
+			String key = arg.substring(2, equals);
+			String value = arg.substring(equals + 1);
+			if (key.equals("config")) {
+				configFile = value;
+			}
+			else {
+				overrides.setProperty(key, value);
+			}
+		}
+
+		if (positional.size() == 3) {
+			overrides.setProperty("remote.host", positional.get(0));
+			overrides.setProperty("http.internalAddress", positional.get(1));
+			overrides.setProperty("http.externalAddress", positional.get(2));
+		}
+		else if (!positional.isEmpty()) {
+			throw new IllegalArgumentException("Expected 3 positional arguments, got "+positional.size());
+		}
+
+		Properties properties = loadDefaults();
+		if (configFile != null) {
+			try (Reader reader = new InputStreamReader(new FileInputStream(configFile), StandardCharsets.UTF_8)) {
+				properties.load(reader);
+			}
+			System.out.println("Loaded configuration from "+configFile);
+		}
+		applyEnvironment(properties, System.getenv());
+		properties.putAll(overrides);
+
+		return new RelayConfig(properties);
+	}
+
+	// The defaults with the given settings on top, ignoring the environment
+	public static RelayConfig fromProperties(Properties overrides) throws IOException {
+		Properties properties = loadDefaults();
+		properties.putAll(overrides);
+		return new RelayConfig(properties);
+	}
+
+	private static Properties loadDefaults() throws IOException {
+		InputStream in = RelayConfig.class.getResourceAsStream(DEFAULTS_RESOURCE);
+		if (in == null) {
+			throw new IOException("Missing "+DEFAULTS_RESOURCE);
+		}
+
+		Properties properties = new Properties();
+		try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+			properties.load(reader);
+		}
+		return properties;
+	}
+
+	private static String getEnvName(String key) {
+		return ENV_PREFIX+key.replace('.', '_').toUpperCase();
+	}
+
+	// The environment can only name keys we know about, since the mapping
+	// from variable names back to (mixed case) keys isn't reversible
+	private static void applyEnvironment(Properties properties, Map<String, String> env) {
+		String relays = env.get(getEnvName("relays"));
+		if (relays != null) {
+			properties.setProperty("relays", relays);
+		}
+
+		Set<String> keys = new TreeSet<>(properties.stringPropertyNames());
+		for (String name : splitList(properties.getProperty("relays", ""))) {
+			for (String setting : RELAY_SETTINGS) {
+				keys.add(RELAY_PREFIX+name+"."+setting);
+			}
+		}
+
+		for (String key : keys) {
+			if (key.startsWith(SYSTEM_PROPERTY_PREFIX)) {
+				// These already have -D
+				continue;
+			}
+
+			String value = env.get(getEnvName(key));
+			if (value != null) {
+				properties.setProperty(key, value);
+			}
+		}
+	}
+
+	private static List<String> splitList(String value) {
+		List<String> items = new ArrayList<>();
+		for (String item : value.split(",")) {
+			item = item.trim();
+			if (!item.isEmpty()) {
+				items.add(item);
+			}
+		}
+		return items;
+	}
+
+	// Copies the tuning knobs into system properties, unless they were
+	// already given with -D. This has to happen before the relay classes
+	// read them, so call it before starting anything.
+	public void applySystemProperties() {
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(SYSTEM_PROPERTY_PREFIX) && System.getProperty(key) == null) {
+				System.setProperty(key, properties.getProperty(key).trim());
+			}
+		}
+	}
+
+	private void parse() {
+		Set<String> relayNames = new LinkedHashSet<>(splitList(getString("relays")));
+		checkKeys(relayNames);
+
+		remoteHost = getAddress("remote.host", true);
+		int remotePortOffset = getInt("remote.portOffset", -65535, 65535);
+		remoteHttpsPort = getPort("remote.httpsPort");
+		remoteHttpPort = getPort("remote.httpPort");
+		internalAddress = getHostAddress("http.internalAddress");
+		externalAddress = getHostAddress("http.externalAddress");
+		httpBindAddress = getAddress("http.bind", false);
+		httpsPort = getPort("https.port");
+		httpPort = getPort("http.port");
+		sxsFallback = getBoolean("sxs.fallback");
+		sxsHttpsPort = getPort("sxs.httpsPort");
+		sxsHttpPort = getPort("sxs.httpPort");
+		metricsPort = getInt("metrics.port", -1, 65535);
+		metricsBindAddress = getAddress("metrics.bind", false);
+
+		relays = new ArrayList<>();
+		for (String name : relayNames) {
+			RelayEndpoint relay = parseRelay(name, remotePortOffset);
+			if (relay != null) {
+				relays.add(relay);
+			}
+		}
+
+		checkConflicts();
+	}
+
+	// Catches typos, which would otherwise silently leave a default in place
+	private void checkKeys(Set<String> relayNames) {
+		Set<String> knownKeys = new HashSet<>();
+		try {
+			knownKeys.addAll(loadDefaults().stringPropertyNames());
+		} catch (IOException e) {
+			errors.add(e.getMessage());
+		}
+
+		for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+			if (key.startsWith(SYSTEM_PROPERTY_PREFIX)) {
+				continue;
+			}
+			if (!key.startsWith(RELAY_PREFIX)) {
+				if (!knownKeys.contains(key)) {
+					errors.add(key+": unknown setting");
+				}
+				continue;
+			}
+
+			int dot = key.lastIndexOf('.');
+			String name = key.substring(RELAY_PREFIX.length(), Math.max(dot, RELAY_PREFIX.length()));
+			String setting = key.substring(dot + 1);
+			if (!RELAY_SETTINGS.contains(setting)) {
+				errors.add(key+": unknown relay setting (expected one of "+RELAY_SETTINGS+")");
+			}
+			else if (!relayNames.contains(name) && !knownKeys.contains(key)) {
+				// Settings for relays left out of the list are fine if they're just our defaults
+				errors.add(key+": relay '"+name+"' is not listed in relays");
+			}
+		}
+	}
+
+	private RelayEndpoint parseRelay(String name, int remotePortOffset) {
+		String prefix = RELAY_PREFIX+name+".";
+
+		RelayEndpoint.Protocol protocol;
+		String protocolName = getString(prefix+"protocol");
+		if (protocolName.equalsIgnoreCase("udp")) {
+			protocol = RelayEndpoint.Protocol.UDP;
+		}
+		else if (protocolName.equalsIgnoreCase("tcp")) {
+			protocol = RelayEndpoint.Protocol.TCP;
+		}
+		else {
+			errors.add(prefix+"protocol: expected udp or tcp, got '"+protocolName+"'");
+			return null;
+		}
+
+		List<String> otherProtocolSettings = protocol == RelayEndpoint.Protocol.TCP ? UDP_ONLY_SETTINGS : TCP_ONLY_SETTINGS;
+		for (String setting : otherProtocolSettings) {
+			if (!getString(prefix+setting).isEmpty()) {
+				errors.add(prefix+setting+": only applies to "+
+						(protocol == RelayEndpoint.Protocol.TCP ? "udp" : "tcp")+" relays");
+			}
+		}
+
+		int port = getPort(prefix+"port");
+		InetAddress bindAddress = getAddress(prefix+"bind", false);
+
+		InetSocketAddress target = null;
+		String targetValue = getString(prefix+"target");
+		if (targetValue.isEmpty()) {
+			if (remoteHost != null && port > 0) {
+				int targetPort = port + remotePortOffset;
+				if (targetPort < 1 || targetPort > 65535) {
+					errors.add(prefix+"port: "+port+" is out of range once remote.portOffset is applied");
+				}
+				else {
+					target = new InetSocketAddress(remoteHost, targetPort);
+				}
+			}
+		}
+		else {
+			target = parseTarget(prefix+"target", targetValue);
+		}
+
+		List<String> engines = Arrays.asList(RelayEndpoint.getEngines(protocol));
+		String engine = getString(prefix+"engine");
+		if (engine.isEmpty()) {
+			engine = engines.get(0);
+		}
+		else if (!engines.contains(engine)) {
+			errors.add(prefix+"engine: expected one of "+engines+" for "+protocolName+", got '"+engine+"'");
+		}
+
+		int receiveBufferSize = getInt(prefix+"rcvbuf", 0, Integer.MAX_VALUE, 0);
+		int sendBufferSize = getInt(prefix+"sndbuf", 0, Integer.MAX_VALUE, 0);
+		int trafficClass = getInt(prefix+"trafficClass", 0, 255, 0);
+		boolean dedicatedLoop = getBoolean(prefix+"dedicatedLoop", false);
+		long busyPollMicros = getInt(prefix+"busyPollUs", 0, Integer.MAX_VALUE, 0);
+		int burstSize = getInt(prefix+"burstSize", 1, 65536, UdpRelayOptions.DEFAULT_BURST_SIZE);
+		int maxSessions = getInt(prefix+"maxSessions", 1, Integer.MAX_VALUE, UdpRelayOptions.DEFAULT_MAX_SESSIONS);
+		long sessionIdleTimeoutMs = getInt(prefix+"sessionIdleTimeoutMs", 1, Integer.MAX_VALUE,
+				(int) UdpRelayOptions.DEFAULT_SESSION_IDLE_TIMEOUT_MS);
+		int shards = getInt(prefix+"shards", 1, 1024, 1);
+		long connectTimeoutMs = getInt(prefix+"connectTimeoutMs", 1, Integer.MAX_VALUE,
+				(int) TcpRelayOptions.DEFAULT_CONNECT_TIMEOUT_MS);
+		int connectAttempts = getInt(prefix+"connectAttempts", 1, 100, TcpRelayOptions.DEFAULT_CONNECT_ATTEMPTS);
+		long connectRetryDelayMs = getInt(prefix+"connectRetryDelayMs", 0, Integer.MAX_VALUE,
+				(int) TcpRelayOptions.DEFAULT_CONNECT_RETRY_DELAY_MS);
+		int maxPendingConnects = getInt(prefix+"maxPendingConnects", 1, Integer.MAX_VALUE,
+				TcpRelayOptions.DEFAULT_MAX_PENDING_CONNECTS);
+		long halfCloseTimeoutMs = getInt(prefix+"halfCloseTimeoutMs", 1, Integer.MAX_VALUE,
+				(int) TcpRelayOptions.DEFAULT_HALF_CLOSE_TIMEOUT_MS);
+
+		if (port <= 0 || target == null) {
+			return null;
+		}
+		return new RelayEndpoint(name, protocol, bindAddress, port, target, engine, receiveBufferSize,
+				sendBufferSize, trafficClass, dedicatedLoop, busyPollMicros, burstSize, maxSessions,
+				sessionIdleTimeoutMs, shards, connectTimeoutMs, connectAttempts, connectRetryDelayMs, maxPendingConnects,
+				halfCloseTimeoutMs);
+	}
+
+	private InetSocketAddress parseTarget(String key, String value) {
+		int colon = value.lastIndexOf(':');
+		if (colon <= 0 || value.endsWith("]")) {
+			errors.add(key+": expected host:port, got '"+value+"'");
+			return null;
+		}
+
+		String host = value.substring(0, colon);
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+
+		int port;
+		try {
+			port = Integer.parseInt(value.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			port = -1;
+		}
+		if (port < 1 || port > 65535) {
+			errors.add(key+": invalid port in '"+value+"'");
+			return null;
+		}
+
+		try {
+			return new InetSocketAddress(InetAddress.getByName(host), port);
+		} catch (UnknownHostException e) {
+			errors.add(key+": unknown host '"+host+"'");
+			return null;
+		}
+	}
+
+	// Two listeners clash if they share a protocol and port, and either one
+	// is on all interfaces or both are on the same address
+	private void checkConflicts() {
+		List<String> descriptions = new ArrayList<>();
+		List<Object[]> listeners = new ArrayList<>();
+
+		listeners.add(new Object[] { RelayEndpoint.Protocol.TCP, httpBindAddress, httpsPort });
+		descriptions.add("https.port");
+		listeners.add(new Object[] { RelayEndpoint.Protocol.TCP, httpBindAddress, httpPort });
+		descriptions.add("http.port");
+		if (metricsPort > 0) {
+			listeners.add(new Object[] { RelayEndpoint.Protocol.TCP, metricsBindAddress, metricsPort });
+			descriptions.add("metrics.port");
+		}
+		for (RelayEndpoint relay : relays) {
+			listeners.add(new Object[] { relay.getProtocol(), relay.getBindAddress(), relay.getPort() });
+			descriptions.add("relay "+relay.getName());
+		}
+
+		for (int i = 0; i < listeners.size(); i++) {
+			for (int j = i + 1; j < listeners.size(); j++) {
+				Object[] a = listeners.get(i);
+				Object[] b = listeners.get(j);
+				if (a[0] == b[0] && a[2].equals(b[2]) &&
+						(a[1] == null || b[1] == null || a[1].equals(b[1]))) {
+					errors.add(descriptions.get(i)+" and "+descriptions.get(j)+" both listen on "+
+							a[0].toString().toLowerCase()+" port "+a[2]);
+				}
+			}
+		}
+	}
+
+	private String getString(String key) {
+		String value = properties.getProperty(key);
+		return value != null ? value.trim() : "";
+	}
+
+	private int getInt(String key, int min, int max) {
+		return getInt(key, min, max, min);
+	}
+
+	// Missing values get the default, malformed ones are reported
+	private int getInt(String key, int min, int max, int defaultValue) {
+		String value = getString(key);
+		if (value.isEmpty()) {
+			if (!properties.containsKey(key)) {
+				return defaultValue;
+			}
+			errors.add(key+": a value is required");
+			return defaultValue;
+		}
+
+		try {
+			int parsed = Integer.parseInt(value);
+			if (parsed >= min && parsed <= max) {
+				return parsed;
+			}
+		} catch (NumberFormatException e) {}
+
+		errors.add(key+": expected an integer from "+min+" to "+max+", got '"+value+"'");
+		return defaultValue;
+	}
+
+	private int getPort(String key) {
+		if (getString(key).isEmpty()) {
+			errors.add(key+": a port is required");
+			return -1;
+		}
+		return getInt(key, 1, 65535, -1);
+	}
+
+	private boolean getBoolean(String key) {
+		return getBoolean(key, false);
+	}
+
+	private boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key);
+		if (value.isEmpty()) {
+			return defaultValue;
+		}
+		if (value.equalsIgnoreCase("true")) {
+			return true;
+		}
+		if (value.equalsIgnoreCase("false")) {
+			return false;
+		}
+		errors.add(key+": expected true or false, got '"+value+"'");
+		return defaultValue;
+	}
+
+	// Empty means all interfaces (null), unless the address is required
+	private InetAddress getAddress(String key, boolean required) {
+		String value = getString(key);
+		if (value.isEmpty()) {
+			if (required) {
+				errors.add(key+": an address is required");
+			}
+			return null;
+		}
+
+		try {
+			return InetAddress.getByName(value);
+		} catch (UnknownHostException e) {
+			errors.add(key+": unknown host '"+value+"'");
+			return null;
+		}
+	}
+
+	private String getHostAddress(String key) {
+		InetAddress address = getAddress(key, true);
+		return address != null ? address.getHostAddress() : null;
+	}
+
+	public InetAddress getRemoteHost() {
+		return remoteHost;
+	}
+
+	public int getRemoteHttpsPort() {
+		return remoteHttpsPort;
+	}
+
+	public int getRemoteHttpPort() {
+		return remoteHttpPort;
+	}
+
+	// Reported to clients in /serverinfo
+	public String getInternalAddress() {
+		return internalAddress;
+	}
+
+	public String getExternalAddress() {
+		return externalAddress;
+	}
+
+	// Null for all interfaces
+	public InetAddress getHttpBindAddress() {
+		return httpBindAddress;
+	}
+
+	public int getHttpsPort() {
+		return httpsPort;
+	}
+
+	public int getHttpPort() {
+		return httpPort;
+	}
+
+	public boolean isSxsFallback() {
+		return sxsFallback;
+	}
+
+	public int getSxsHttpsPort() {
+		return sxsHttpsPort;
+	}
+
+	public int getSxsHttpPort() {
+		return sxsHttpPort;
+	}
+
+	// Disabled if not positive
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+
+	public InetAddress getMetricsBindAddress() {
+		return metricsBindAddress;
+	}
+
+	public List<RelayEndpoint> getRelays() {
+		return Collections.unmodifiableList(relays);
+	}
+}
@@ -0,0 +1,151 @@
+package opengferelay;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import opengferelay.simplerelay.TcpRelay;
+import opengferelay.simplerelay.TcpRelayOptions;
+import opengferelay.simplerelay.UdpRelay;
+import opengferelay.simplerelay.UdpRelayOptions;
+
+// One stream relay from the config. Instances are only created by
+// RelayConfig once every setting has been validated.
+public class RelayEndpoint {
+	public enum Protocol {
+		UDP, TCP
+	}
+
+	public static final String ENGINE_PLAIN = "plain";
+	public static final String ENGINE_BURST = "burst";
+	public static final String ENGINE_MMSG = "mmsg";
+	public static final String ENGINE_SPLICE = "splice";
+	public static final String ENGINE_STREAM = "stream";
+
+	private final String name;
+	private final Protocol protocol;
+	private final InetAddress bindAddress;
+	private final int port;
+	private final InetSocketAddress target;
+	private final String engine;
+	private final int receiveBufferSize;
+	private final int sendBufferSize;
+	private final int trafficClass;
+	private final boolean dedicatedLoop;
+	private final long busyPollMicros;
+	private final int burstSize;
+	private final int maxSessions;
+	private final long sessionIdleTimeoutMs;
+	private final int shards;
+	private final long connectTimeoutMs;
+	private final int connectAttempts;
+	private final long connectRetryDelayMs;
+	private final int maxPendingConnects;
+	private final long halfCloseTimeoutMs;
+
+	RelayEndpoint(String name, Protocol protocol, InetAddress bindAddress, int port, InetSocketAddress target,
+			String engine, int receiveBufferSize, int sendBufferSize, int trafficClass, boolean dedicatedLoop,
+			long busyPollMicros, int burstSize, int maxSessions, long sessionIdleTimeoutMs, int shards,
+			long connectTimeoutMs, int connectAttempts, long connectRetryDelayMs, int maxPendingConnects,
+			long halfCloseTimeoutMs) {
+		this.name = name;
+		this.protocol = protocol;
+		this.bindAddress = bindAddress;
+		this.port = port;
+		this.target = target;
+		this.engine = engine;
+		this.receiveBufferSize = receiveBufferSize;
+		this.sendBufferSize = sendBufferSize;
+		this.trafficClass = trafficClass;
+		this.dedicatedLoop = dedicatedLoop;
+		this.busyPollMicros = busyPollMicros;
+		this.burstSize = burstSize;
+		this.maxSessions = maxSessions;
+		this.sessionIdleTimeoutMs = sessionIdleTimeoutMs;
+		this.shards = shards;
+		this.connectTimeoutMs = connectTimeoutMs;
+		this.connectAttempts = connectAttempts;
+		this.connectRetryDelayMs = connectRetryDelayMs;
+		this.maxPendingConnects = maxPendingConnects;
+		this.halfCloseTimeoutMs = halfCloseTimeoutMs;
+	}
+
+	// Engines each protocol supports, the first being the default
+	static String[] getEngines(Protocol protocol) {
+		if (protocol == Protocol.UDP) {
+			return new String[] { ENGINE_PLAIN, ENGINE_BURST, ENGINE_MMSG };
+		}
+		return new String[] { ENGINE_SPLICE, ENGINE_STREAM };
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Protocol getProtocol() {
+		return protocol;
+	}
+
+	// Null for all interfaces
+	public InetAddress getBindAddress() {
+		return bindAddress;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public InetSocketAddress getTarget() {
+		return target;
+	}
+
+	public String getEngine() {
+		return engine;
+	}
+
+	public UdpRelayOptions toUdpOptions() {
+		return new UdpRelayOptions()
+				.setBindAddress(bindAddress)
+				.setBurstMode(ENGINE_BURST.equals(engine) || ENGINE_MMSG.equals(engine))
+				.setNativeBatching(ENGINE_MMSG.equals(engine))
+				.setBurstSize(burstSize)
+				.setMaxSessions(maxSessions)
+				.setSessionIdleTimeoutMs(sessionIdleTimeoutMs)
+				.setShards(shards)
+				.setReceiveBufferSize(receiveBufferSize)
+				.setSendBufferSize(sendBufferSize)
+				.setTrafficClass(trafficClass)
+				.setDedicatedLoop(dedicatedLoop)
+				.setBusyPollMicros(busyPollMicros);
+	}
+
+	public TcpRelayOptions toTcpOptions() {
+		return new TcpRelayOptions()
+				.setBindAddress(bindAddress)
+				.setMode(ENGINE_STREAM.equals(engine) ? TcpRelayOptions.Mode.STREAM : TcpRelayOptions.Mode.SPLICE)
+				.setReceiveBufferSize(receiveBufferSize)
+				.setSendBufferSize(sendBufferSize)
+				.setTrafficClass(trafficClass)
+				.setDedicatedLoop(dedicatedLoop)
+				.setBusyPollMicros(busyPollMicros)
+				.setConnectTimeoutMs(connectTimeoutMs)
+				.setConnectAttempts(connectAttempts)
+				.setConnectRetryDelayMs(connectRetryDelayMs)
+				.setMaxPendingConnects(maxPendingConnects)
+				.setHalfCloseTimeoutMs(halfCloseTimeoutMs);
+	}
+
+	// Returns the UdpRelay or TcpRelay that was started
+	public Object start() throws IOException {
+		if (protocol == Protocol.UDP) {
+			return UdpRelay.startRelay(port, target, toUdpOptions());
+		}
+		return TcpRelay.startRelay(port, target, toTcpOptions());
+	}
+
+	@Override
+	public String toString() {
+		return name+" ("+protocol.name().toLowerCase()+" "+
+				(bindAddress != null ? bindAddress.getHostAddress() : "*")+":"+port+" -> "+target+", "+engine+")";
+	}
+}
@@ -1,38 +1,41 @@
 package opengferelay;
 
 import java.io.IOException;
+import java.net.BindException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.limelight.nvstream.http.NvHTTP;
 import com.limelight.nvstream.http.PairingManager;
+import com.limelight.nvstream.http.XmlResponse;
 
 import opengferelay.https.HttpsRelay;
 import opengferelay.https.PcCryptoProvider;
-import opengferelay.simplerelay.TcpRelay;
+import opengferelay.metrics.MetricsServer;
 import opengferelay.simplerelay.UdpRelay;
 
 public class RelayMain {
 	private static final PcCryptoProvider cryptoProvider = new PcCryptoProvider();
-
-	private static final int SXS_HTTPS_PORT = 37984;
-	private static final int SXS_HTTP_PORT = 37989;
-	private static final int DEFAULT_HTTPS_PORT = 47984;
-	private static final int DEFAULT_HTTP_PORT = 47989;
 	
-	// Throws if the port is unavailable
-	private static void testPort(int port) throws IOException {
-		ServerSocket ss = new ServerSocket(port);
-		ss.close();
+	public static boolean pair(InetAddress host) {
+		return pair(host, NvHTTP.HTTPS_PORT, NvHTTP.HTTP_PORT);
 	}
 	
-	public static boolean pair(InetAddress host) {
+	public static boolean pair(InetAddress host, int httpsPort, int httpPort) {
 		System.out.println("Checking pair status with server...");
 		
 		try {
-			NvHTTP httpConn = new NvHTTP(host.getHostAddress(), cryptoProvider);
-			if (httpConn.getPairState() == PairingManager.PairState.PAIRED) {
+			NvHTTP httpConn = new NvHTTP(host.getHostAddress(), httpsPort, httpPort, cryptoProvider);
+			XmlResponse serverInfo = httpConn.parseServerInfo(httpConn.getServerInfo());
+			if (httpConn.getPairState(serverInfo) == PairingManager.PairState.PAIRED) {
 				System.out.println("Already paired to server");
 				return true;
 			}
@@ -41,7 +44,7 @@ public class RelayMain {
 				
 				System.out.println("Please type the following PIN on the remote PC: "+pinStr);
 				
-				PairingManager.PairState pairState = httpConn.getPairingManager().pair(httpConn.getServerInfo(), pinStr);
+				PairingManager.PairState pairState = httpConn.getPairingManager().pair(serverInfo, pinStr);
 				if (pairState == PairingManager.PairState.PIN_WRONG) {
 					System.out.println("Incorrect PIN");
 				}
@@ -61,67 +64,186 @@ public class RelayMain {
 		}
 	}
 	
+	// Runs each task on its own thread so every listener binds at once. If any
+	// of them fail, the exception lists all the failures rather than the first.
+	private static List<Object> startInParallel(Map<String, Callable<Object>> tasks) throws IOException {
+		ExecutorService executor = ConnectionExecutors.newBoundedPool("Relay startup", tasks.size());
+		try {
+			Map<String, Future<Object>> futures = new LinkedHashMap<>();
+			for (Map.Entry<String, Callable<Object>> task : tasks.entrySet()) {
+				futures.put(task.getKey(), executor.submit(task.getValue()));
+			}
+			
+			List<Object> started = new ArrayList<>();
+			StringBuilder failures = new StringBuilder();
+			for (Map.Entry<String, Future<Object>> future : futures.entrySet()) {
+				try {
+					started.add(future.getValue().get());
+				} catch (ExecutionException e) {
+					failures.append("\n  ").append(future.getKey()).append(": ").append(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while starting relays");
+				}
+			}
+			if (failures.length() != 0) {
+				throw new IOException("Failed to start:"+failures);
+			}
+			return started;
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	private static Callable<Object> startHttpTask(final HttpsRelay relay, final InetAddress bindAddress,
+			final int port, final boolean https) {
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				relay.start(bindAddress, port, https);
+				return relay;
+			}
+		};
+	}
+	
+	// Starts every stream relay in the config in parallel. Returns the UDP relays by name.
+	public static Map<String, UdpRelay> startStreamRelays(RelayConfig config) throws IOException {
+		return startRelays(config, new LinkedHashMap<String, Callable<Object>>());
+	}
+	
+	// Starts the default stream relays, with the remote host expected on the same ports
+	// shifted by remotePortOffset, which is only non-zero when it shares our host
+	public static Map<String, UdpRelay> startStreamRelays(InetAddress remoteAddr, int remotePortOffset) throws IOException {
+		Properties overrides = new Properties();
+		overrides.setProperty("remote.host", remoteAddr.getHostAddress());
+		overrides.setProperty("remote.portOffset", Integer.toString(remotePortOffset));
+		overrides.setProperty("http.internalAddress", remoteAddr.getHostAddress());
+		overrides.setProperty("http.externalAddress", remoteAddr.getHostAddress());
+		return startStreamRelays(RelayConfig.fromProperties(overrides));
+	}
+	
+	// Binds the stream relays along with any other listeners given
+	private static Map<String, UdpRelay> startRelays(RelayConfig config, Map<String, Callable<Object>> tasks) throws IOException {
+		List<String> names = new ArrayList<>();
+		for (final RelayEndpoint endpoint : config.getRelays()) {
+			names.add(endpoint.getName());
+			tasks.put(endpoint.toString(), new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					return endpoint.start();
+				}
+			});
+		}
+		
+		List<Object> started = startInParallel(tasks);
+		
+		// The stream relays come after the other listeners
+		Map<String, UdpRelay> udpRelays = new LinkedHashMap<>();
+		int offset = started.size() - names.size();
+		for (int i = 0; i < names.size(); i++) {
+			if (started.get(offset + i) instanceof UdpRelay) {
+				udpRelays.put(names.get(i), (UdpRelay) started.get(offset + i));
+			}
+		}
+		return udpRelays;
+	}
+	
+	// BindException covers more than a port being taken (a bind address that
+	// isn't ours, for one), and only a taken port means GFE is on this host
+	private static boolean isPortInUse(BindException e) {
+		return e.getMessage() != null && e.getMessage().contains("in use");
+	}
+	
+	// Returns the UDP relays by name, which are only started if we aren't side-by-side with GFE
+	private static Map<String, UdpRelay> startListeners(RelayConfig config, HttpsRelay httpsRelay,
+			HttpsRelay httpRelay) throws IOException {
+		Map<String, Callable<Object>> tasks = new LinkedHashMap<>();
+		try {
+			// The HTTPS port decides whether GFE is running on this host too, so it goes first
+			httpsRelay.start(config.getHttpBindAddress(), config.getHttpsPort(), true);
+		} catch (BindException e) {
+			if (!config.isSxsFallback() || !isPortInUse(e)) {
+				throw new IOException("Failed to start https port "+config.getHttpsPort()+": "+e.getMessage(), e);
+			}
+			
+			// GFE owns the standard ports, so we run side-by-side with it on our own
+			// HTTP(S) ports and clients stream from GFE directly
+			System.out.println("Port "+config.getHttpsPort()+" is in use, so running in side-by-side mode");
+			tasks.put("https port "+config.getSxsHttpsPort(),
+					startHttpTask(httpsRelay, config.getHttpBindAddress(), config.getSxsHttpsPort(), true));
+			tasks.put("http port "+config.getSxsHttpPort(),
+					startHttpTask(httpRelay, config.getHttpBindAddress(), config.getSxsHttpPort(), false));
+			startInParallel(tasks);
+			return new LinkedHashMap<>();
+		} catch (Exception e) {
+			throw new IOException("Failed to start https port "+config.getHttpsPort()+": "+e, e);
+		}
+		
+		tasks.put("http port "+config.getHttpPort(),
+				startHttpTask(httpRelay, config.getHttpBindAddress(), config.getHttpPort(), false));
+		return startRelays(config, tasks);
+	}
+	
+	private static void printUsage() {
+		System.out.println("Usage: opengferelay [--config=<file>] [--<key>=<value> ...]");
+		System.out.println("       opengferelay <IP of remote server> <internal relay IP> <external relay IP>");
+		System.out.println("Settings and their defaults are listed in opengferelay/relay-defaults.properties.");
+	}
+	
 	public static void main(String[] args) throws Exception {
-		if (args.length != 3) {
-			System.out.println("Usage: opengferelay <IP of remote server> <internal relay IP> <external relay IP>");
+		RelayConfig config;
+		try {
+			config = RelayConfig.load(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			printUsage();
 			return;
 		}
+		config.applySystemProperties();
+		
+		// Must happen before pairing initializes TLS
+		HttpsRelay.enableSessionTickets();
 		
-		InetAddress remoteAddr = InetAddress.getByName(args[0]);
+		// Prometheus metrics for the relays are only served if a port is given
+		if (config.getMetricsPort() > 0) {
+			MetricsServer.start(config.getMetricsBindAddress(), config.getMetricsPort());
+		}
+		
+		InetAddress remoteAddr = config.getRemoteHost();
 		
 		// Initiate pairing to the remote host
-		if (!pair(remoteAddr)) {
+		if (!pair(remoteAddr, config.getRemoteHttpsPort(), config.getRemoteHttpPort())) {
 			return;
 		}
 
 		// HTTPS server
-		HttpsRelay httpsRelay = new HttpsRelay(
-				InetAddress.getByName(args[1]).getHostAddress(),
-				InetAddress.getByName(args[2]).getHostAddress(),
-				remoteAddr, cryptoProvider);
+		HttpsRelay httpsRelay = new HttpsRelay(config.getInternalAddress(), config.getExternalAddress(),
+				remoteAddr, config.getRemoteHttpsPort(), config.getRemoteHttpPort(), cryptoProvider);
 		
 		// HTTP server
-		HttpsRelay httpRelay = new HttpsRelay(
-				InetAddress.getByName(args[1]).getHostAddress(),
-				InetAddress.getByName(args[2]).getHostAddress(),
-				remoteAddr, cryptoProvider);
+		HttpsRelay httpRelay = new HttpsRelay(config.getInternalAddress(), config.getExternalAddress(),
+				remoteAddr, config.getRemoteHttpsPort(), config.getRemoteHttpPort(), cryptoProvider);
 		
+		Map<String, UdpRelay> udpRelays;
 		try {
-			// Try non-SxS mode first
-			testPort(DEFAULT_HTTPS_PORT);
-			httpsRelay.start(DEFAULT_HTTPS_PORT, true);
-			httpRelay.start(DEFAULT_HTTP_PORT, false);
-			
-			// If that worked, we'll start the other relays
-			
-			// Remote input port
-			TcpRelay.startRelay(35043, new InetSocketAddress(remoteAddr, 35043));
-			
-			// Control port
-			TcpRelay.startRelay(47995, new InetSocketAddress(remoteAddr, 47995));
-			UdpRelay.startRelay(47999, new InetSocketAddress(remoteAddr, 47999));
-			
-			// RTSP port
-			TcpRelay.startRelay(48010, new InetSocketAddress(remoteAddr, 48010));
-			UdpRelay.startRelay(48010, new InetSocketAddress(remoteAddr, 48010));
-			
-			// Video port
-			UdpRelay.startRelay(47998, new InetSocketAddress(remoteAddr, 47998));
-			
-			// Audio port
-			UdpRelay.startRelay(48000, new InetSocketAddress(remoteAddr, 48000));
-
-			// Mic port
-			UdpRelay.startRelay(48002, new InetSocketAddress(remoteAddr, 48002));
-		} catch (Exception e) {
-			// Run in SxS mode
-			httpsRelay.start(SXS_HTTPS_PORT, true);
-			httpRelay.start(SXS_HTTP_PORT, false);
+			udpRelays = startListeners(config, httpsRelay, httpRelay);
+		} catch (IOException e) {
+			// Exit rather than return, since the listeners that did start would keep us running
+			System.out.println(e.getMessage());
+			System.exit(1);
+			return;
 		}
 		
 		// Wait forever
 		for (;;) {
 			Thread.sleep(100000);
+			
+			for (Map.Entry<String, UdpRelay> relay : udpRelays.entrySet()) {
+				if (relay.getValue().getBurstStats() != null) {
+					System.out.println("Burst stats for "+relay.getKey()+": "+relay.getValue().getBurstStats());
+				}
+			}
+			System.out.println("TLS handshakes: "+HttpsRelay.getHandshakeStats());
 		}
 	}
 }
@@ -0,0 +1,360 @@
+package opengferelay.https;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Caches /appasset box art so clients browsing the app grid don't each
+// go back to GFE. Asset bodies are stored by their SHA-256 hash, which
+// also serves as the ETag. Request URLs map to a hash and are refetched
+// once they are older than the TTL; if GFE returns the same bytes, the
+// stored body is simply reused.
+//
+// Bodies live in a memory LRU bounded by total size. If a directory is
+// configured, bodies evicted from memory are spilled there and served
+// by memory-mapping the file. The disk tier is an LRU bounded by size
+// too. Once a body has left both tiers, the URLs that pointed at it are
+// dropped from the index.
+public class AppAssetCache {
+	// These differ per client and request, but not per asset
+	private static final String[] IGNORED_PARAMETERS = { "uniqueid", "uuid" };
+
+	private static final char[] hexArray = "0123456789abcdef".toCharArray();
+
+	private final long maxMemoryBytes;
+	private final File diskDir;
+	private final long maxDiskBytes;
+	private final long ttlMs;
+
+	private final ConcurrentHashMap<String, IndexEntry> index = new ConcurrentHashMap<>();
+
+	// Access-ordered; guarded by itself
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryBytes;
+
+	// Hash to length of the bodies in diskDir. Access-ordered; guarded by itself
+	private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+	private long diskBytes;
+
+	private static class IndexEntry {
+		final String hash;
+		final String contentType;
+		final long fetchTime;
+
+		IndexEntry(String hash, String contentType, long fetchTime) {
+			this.hash = hash;
+			this.contentType = contentType;
+			this.fetchTime = fetchTime;
+		}
+	}
+
+	public static class Asset {
+		private final String etag;
+		private final String contentType;
+		private final ByteBuffer data;
+
+		Asset(String etag, String contentType, ByteBuffer data) {
+			this.etag = etag;
+			this.contentType = contentType;
+			this.data = data;
+		}
+
+		// Quoted, as it appears in ETag and If-None-Match headers
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public long getLength() {
+			return data.remaining();
+		}
+
+		public InputStream openStream() {
+			return new ByteBufferInputStream(data.duplicate());
+		}
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buf;
+
+		ByteBufferInputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public int read() {
+			return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buf.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buf.remaining();
+		}
+	}
+
+	// diskDir may be null to keep the cache in memory only
+	public AppAssetCache(long maxMemoryBytes, File diskDir, long maxDiskBytes, long ttlMs) throws IOException {
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.diskDir = diskDir;
+		this.maxDiskBytes = maxDiskBytes;
+		this.ttlMs = ttlMs;
+
+		if (diskDir != null) {
+			if (!diskDir.isDirectory() && !diskDir.mkdirs()) {
+				throw new IOException("Unable to create asset cache directory: "+diskDir);
+			}
+
+			// We don't persist the URL index, so anything left over from a previous run is unreachable
+			File[] files = diskDir.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					if (isHashFileName(f.getName()) || isTempFileName(f.getName())) {
+						f.delete();
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isHashFileName(String name) {
+		if (name.length() != 64) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (Character.digit(name.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isTempFileName(String name) {
+		return name.length() > 64 && isHashFileName(name.substring(0, 64)) && name.endsWith(".tmp");
+	}
+
+	// Builds a cache key from the URL and the parameters that identify the asset
+	public static String normalizeUrl(String url, Map<String, String> parameters) {
+		TreeMap<String, String> sortedParameters = new TreeMap<>(parameters);
+		for (String ignored : IGNORED_PARAMETERS) {
+			sortedParameters.remove(ignored);
+		}
+
+		StringBuilder key = new StringBuilder(url);
+		char separator = '?';
+		for (Map.Entry<String, String> entry : sortedParameters.entrySet()) {
+			key.append(separator).append(entry.getKey()).append('=').append(entry.getValue());
+			separator = '&';
+		}
+		return key.toString();
+	}
+
+	// Returns null if the asset isn't cached or needs to be refetched
+	public Asset get(String key) {
+		IndexEntry entry = index.get(key);
+		if (entry == null) {
+			return null;
+		}
+
+		if (System.currentTimeMillis() - entry.fetchTime >= ttlMs) {
+			// Force a revalidation against GFE
+			return null;
+		}
+
+		ByteBuffer data = loadBody(entry.hash);
+		if (data == null) {
+			// Evicted from both tiers, or still on its way to disk
+			index.remove(key, entry);
+			return null;
+		}
+
+		return new Asset(toEtag(entry.hash), entry.contentType, data);
+	}
+
+	public Asset put(String key, byte[] body, String contentType) {
+		String hash = hashBody(body);
+
+		IndexEntry oldEntry = index.put(key, new IndexEntry(hash, contentType, System.currentTimeMillis()));
+		if (oldEntry != null && !oldEntry.hash.equals(hash)) {
+			System.out.println("Asset changed: "+key);
+		}
+
+		// Evicted bodies are written out after letting go of the lock, so
+		// readers never wait on disk I/O
+		ArrayList<Map.Entry<String, byte[]>> evicted = new ArrayList<>();
+		synchronized (memory) {
+			if (!memory.containsKey(hash)) {
+				memory.put(hash, body);
+				memoryBytes += body.length;
+
+				Iterator<Map.Entry<String, byte[]>> iterator = memory.entrySet().iterator();
+				while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+					Map.Entry<String, byte[]> eldest = iterator.next();
+					iterator.remove();
+					memoryBytes -= eldest.getValue().length;
+					evicted.add(eldest);
+				}
+			}
+		}
+
+		if (!evicted.isEmpty()) {
+			HashSet<String> dropped = new HashSet<>();
+			for (Map.Entry<String, byte[]> eldest : evicted) {
+				spillToDisk(eldest.getKey(), eldest.getValue(), dropped);
+			}
+			pruneIndex(dropped);
+		}
+
+		return new Asset(toEtag(hash), contentType, ByteBuffer.wrap(body));
+	}
+
+	// Adds the hashes of bodies that are no longer stored anywhere to dropped
+	private void spillToDisk(String hash, byte[] body, HashSet<String> dropped) {
+		if (diskDir == null || body.length > maxDiskBytes) {
+			dropped.add(hash);
+			return;
+		}
+
+		synchronized (disk) {
+			if (disk.containsKey(hash)) {
+				// Content-addressed, so it's already there. This counts as a use.
+				disk.get(hash);
+				return;
+			}
+		}
+
+		// Write to a temporary file first so readers never see a partial body
+		File file = new File(diskDir, hash);
+		File tempFile = null;
+		try {
+			tempFile = File.createTempFile(hash, ".tmp", diskDir);
+			try (FileOutputStream out = new FileOutputStream(tempFile)) {
+				out.write(body);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+			dropped.add(hash);
+			return;
+		}
+		if (!tempFile.renameTo(file)) {
+			tempFile.delete();
+			dropped.add(hash);
+			return;
+		}
+
+		ArrayList<String> evicted = new ArrayList<>();
+		synchronized (disk) {
+			if (disk.put(hash, (long) body.length) == null) {
+				diskBytes += body.length;
+			}
+
+			Iterator<Map.Entry<String, Long>> iterator = disk.entrySet().iterator();
+			while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+				Map.Entry<String, Long> eldest = iterator.next();
+				iterator.remove();
+				diskBytes -= eldest.getValue();
+				evicted.add(eldest.getKey());
+			}
+		}
+
+		// Bodies that are mapped by a response in flight stay readable until it's done
+		for (String evictedHash : evicted) {
+			new File(diskDir, evictedHash).delete();
+			dropped.add(evictedHash);
+		}
+	}
+
+	private void pruneIndex(HashSet<String> dropped) {
+		// A dropped body might have been put back since
+		synchronized (memory) {
+			dropped.removeAll(memory.keySet());
+		}
+		if (dropped.isEmpty()) {
+			return;
+		}
+
+		Iterator<IndexEntry> iterator = index.values().iterator();
+		while (iterator.hasNext()) {
+			if (dropped.contains(iterator.next().hash)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private ByteBuffer loadBody(String hash) {
+		synchronized (memory) {
+			byte[] body = memory.get(hash);
+			if (body != null) {
+				return ByteBuffer.wrap(body);
+			}
+		}
+
+		if (diskDir == null) {
+			return null;
+		}
+
+		synchronized (disk) {
+			if (disk.get(hash) == null) {
+				return null;
+			}
+		}
+
+		File file = new File(diskDir, hash);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// The mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static String toEtag(String hash) {
+		return "\""+hash+"\"";
+	}
+
+	private static String hashBody(byte[] body) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(body);
+		} catch (NoSuchAlgorithmException e) {
+			// Should never happen
+			throw new RuntimeException(e);
+		}
+
+		char[] hexChars = new char[digest.length * 2];
+		for (int j = 0; j < digest.length; j++) {
+			int v = digest[j] & 0xFF;
+			hexChars[j * 2] = hexArray[v >>> 4];
+			hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+		}
+		return new String(hexChars);
+	}
+}
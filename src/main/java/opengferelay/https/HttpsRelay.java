@@ -1,5 +1,6 @@
 package opengferelay.https;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
@@ -9,7 +10,12 @@ import java.security.Principal;
 import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
@@ -19,29 +25,122 @@ import javax.net.ssl.X509TrustManager;
 
 import org.veryquick.embweb.EmbeddedServer;
 import org.veryquick.embweb.HttpRequestHandler;
+import org.veryquick.embweb.Request;
 import org.veryquick.embweb.Response;
+import org.veryquick.embweb.ServerConfig;
 
 import com.limelight.nvstream.http.HttpsHelper;
 import com.limelight.nvstream.http.LimelightCryptoProvider;
 import com.limelight.nvstream.http.NvHTTP;
 
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import opengferelay.ConnectionExecutors;
+
 public class HttpsRelay {
 	private static final GfeKeyProvider keyProvider = new GfeKeyProvider();
 	
+	// Resumed sessions skip the RSA private key operation, which dominates our CPU usage
+	// when lots of clients poll us. These can be overridden with the system properties.
+	private static int tlsSessionCacheSize = Integer.getInteger("opengferelay.tls.sessionCacheSize", 1000);
+	private static int tlsSessionTimeoutSecs = Integer.getInteger("opengferelay.tls.sessionTimeout", 4 * 60 * 60);
+	
+	// Upstream connections to GFE are kept alive and reused between proxied requests
+	private static final int upstreamMaxIdleConnections = Integer.getInteger("opengferelay.upstream.maxIdleConnections",
+			NvHTTP.DEFAULT_POOL_MAX_IDLE_CONNECTIONS);
+	private static final long upstreamKeepAliveMs = Long.getLong("opengferelay.upstream.keepAliveMs",
+			NvHTTP.DEFAULT_POOL_KEEP_ALIVE_MS);
+	
+	// Box art cache shared by all listeners
+	private static final long assetCacheMaxBytes = Long.getLong("opengferelay.assetCache.maxBytes", 64 * 1024 * 1024);
+	private static final String assetCacheDir = System.getProperty("opengferelay.assetCache.dir");
+	private static final long assetCacheMaxDiskBytes = Long.getLong("opengferelay.assetCache.maxDiskBytes", 512 * 1024 * 1024);
+	private static final long assetCacheTtlSecs = Long.getLong("opengferelay.assetCache.ttlSecs", 60 * 60);
+	private static AppAssetCache assetCache;
+	
+	// How long a rewritten /serverinfo document is reused for the same request, and how
+	// long polls wait for another poll's fetch of it
+	private static final long serverInfoTtlMs = Long.getLong("opengferelay.serverinfo.ttlMs", 2000);
+	private static final long serverInfoWaitTimeoutMs = Long.getLong("opengferelay.serverinfo.waitTimeoutMs",
+			2 * NvHTTP.READ_TIMEOUT);
+	
+	// IP traffic class for HTTP(S) responses, unmarked by default
+	private static final int httpTrafficClass = Integer.getInteger("opengferelay.http.trafficClass", 0);
+	
+	private static final TlsHandshakeStats handshakeStats = new TlsHandshakeStats();
+	private static SSLContext sslContext;
+	
+	// Hop-by-hop headers and the ones our Response generates itself
+	private static final Set<String> unforwardedHeaders = new HashSet<>(Arrays.asList(
+			"connection", "keep-alive", "proxy-connection", "te", "trailer", "upgrade",
+			"transfer-encoding", "content-length", "content-type"));
+	
 	private final NvHTTP httpObj;
-	private final String reportedLocalAddress, reportedRemoteAddress;
+	private final ServerInfoCache serverInfoCache = new ServerInfoCache(serverInfoTtlMs, serverInfoWaitTimeoutMs);
+	private final XmlRewriter serverInfoRewriter;
 	
 	public HttpsRelay(String reportedLocalAddress, String reportedRemoteAddress, 
 			InetAddress remoteAddress, LimelightCryptoProvider cryptoProv) throws IOException {
-		this.reportedLocalAddress = reportedLocalAddress;
-		this.reportedRemoteAddress = reportedRemoteAddress;
-		this.httpObj = new NvHTTP(remoteAddress.getHostAddress(), cryptoProv);
+		this(reportedLocalAddress, reportedRemoteAddress, remoteAddress,
+				NvHTTP.HTTPS_PORT, NvHTTP.HTTP_PORT, cryptoProv);
+	}
+	
+	// For a remote host that isn't listening on the standard GFE ports
+	public HttpsRelay(String reportedLocalAddress, String reportedRemoteAddress, 
+			InetAddress remoteAddress, int remoteHttpsPort, int remoteHttpPort,
+			LimelightCryptoProvider cryptoProv) throws IOException {
+		this.serverInfoRewriter = createServerInfoRewriter(reportedLocalAddress, reportedRemoteAddress);
+		this.httpObj = new NvHTTP(remoteAddress.getHostAddress(), remoteHttpsPort, remoteHttpPort, cryptoProv,
+				upstreamMaxIdleConnections, upstreamKeepAliveMs);
 		
 		// Force the key pair to be loaded now to ensure it successfully loads
 		keyProvider.getServerCertificateChain();
 	}
 	
-	private SSLContext createSslContext() throws NoSuchAlgorithmException, KeyManagementException {
+	// This must be called before anything initializes TLS in the JVM, since the JDK only reads
+	// the setting once. It's on by default in recent JDKs but we don't want to rely on that.
+	public static void enableSessionTickets() {
+		if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+		}
+	}
+	
+	public static synchronized void setTlsSessionCache(int size, int timeoutSecs) {
+		if (sslContext != null) {
+			throw new IllegalStateException("TLS context is already initialized");
+		}
+		tlsSessionCacheSize = size;
+		tlsSessionTimeoutSecs = timeoutSecs;
+	}
+	
+	public static TlsHandshakeStats getHandshakeStats() {
+		return handshakeStats;
+	}
+	
+	private static synchronized AppAssetCache getAssetCache() throws IOException {
+		if (assetCache == null) {
+			assetCache = new AppAssetCache(assetCacheMaxBytes,
+					assetCacheDir != null ? new File(assetCacheDir) : null, assetCacheMaxDiskBytes,
+					TimeUnit.SECONDS.toMillis(assetCacheTtlSecs));
+		}
+		return assetCache;
+	}
+	
+	// All HTTPS listeners share one context so they share one session cache
+	private static synchronized SSLContext getSslContext() throws NoSuchAlgorithmException, KeyManagementException {
+		if (sslContext == null) {
+			sslContext = createSslContext();
+			sslContext.getServerSessionContext().setSessionCacheSize(tlsSessionCacheSize);
+			sslContext.getServerSessionContext().setSessionTimeout(tlsSessionTimeoutSecs);
+		}
+		return sslContext;
+	}
+	
+	private static SSLContext createSslContext() throws NoSuchAlgorithmException, KeyManagementException {
 		// Create a trust manager that does not validate certificate chains
 		TrustManager[] trustAllCerts = new TrustManager[] { 
 				new X509TrustManager() {
@@ -105,63 +204,158 @@ public class HttpsRelay {
 		return str;
 	}
 	
-	private static String removeXmlElement(String tagName, String xmlData) {
-		if (!xmlData.contains(tagName)) {
-			// Tag wasn't there to begin with
-			System.out.println("Tag not found: "+tagName);
-			return xmlData;
-		}
+	// Forward the upstream headers and body to the client as the body arrives
+	private static void streamUpstreamResponse(okhttp3.Response upstream, Response resp, String defaultContentType) {
+		ResponseBody body = upstream.body();
 		
-		String startTag = "<"+tagName+">";
-		String endTag = "</"+tagName+">";
+		MediaType contentType = body.contentType();
+		resp.setContentType(contentType != null ? contentType.toString() : defaultContentType);
 		
-		String pre = xmlData.substring(0, xmlData.indexOf(startTag));
-		String post = xmlData.substring(xmlData.indexOf(endTag) + endTag.length(), xmlData.length());
-		
-		xmlData = pre + post;
+		Headers headers = upstream.headers();
+		for (int i = 0; i < headers.size(); i++) {
+			if (!unforwardedHeaders.contains(headers.name(i).toLowerCase(Locale.ROOT))) {
+				resp.addHeader(headers.name(i), headers.value(i));
+			}
+		}
 		
-		return xmlData;
+		resp.setStreamingContent(body.byteStream(), body.contentLength());
+		resp.setOk();
 	}
 	
-	private static String patchXmlElement(String tagName, String newValue, String xmlData) {
-		if (!xmlData.contains(tagName)) {
-			// Tag wasn't there to begin with
-			System.out.println("Tag not found: "+tagName);
-			return xmlData;
-		}
-		
-		String startTag = "<"+tagName+">";
-		String endTag = "</"+tagName+">";
+	private void serveAppAsset(Request request, String fullUrl, Response resp) throws IOException {
+		AppAssetCache cache = getAssetCache();
+		String key = AppAssetCache.normalizeUrl(request.getUrl(), request.getParameters());
 		
-		String pre = xmlData.substring(0, xmlData.indexOf(startTag));
-		String post = xmlData.substring(xmlData.indexOf(endTag) + endTag.length(), xmlData.length());
-		
-		xmlData = pre + startTag + newValue + endTag + post;
+		AppAssetCache.Asset asset = cache.get(key);
+		if (asset == null) {
+			okhttp3.Response upstream = HttpsHelper.openHttpResponse(httpObj, fullUrl);
+			try (ResponseBody body = upstream.body()) {
+				MediaType contentType = body.contentType();
+				asset = cache.put(key, body.bytes(), contentType != null ? contentType.toString() : "image/png");
+			}
+			System.out.println("PNG asset received");
+		}
+		else {
+			System.out.println("PNG asset served from cache");
+		}
 		
-		return xmlData;
+		if (matchesEtag(request.getHeader("If-None-Match"), asset.getEtag())) {
+			resp.setNotModified();
+		}
+		else {
+			resp.setContentType(asset.getContentType());
+			resp.setStreamingContent(asset.openStream(), asset.getLength());
+			resp.setOk();
+		}
+		resp.addHeader("ETag", asset.getEtag());
 	}
 	
-	private static String getXmlElement(String tagName, String xmlData) {
-		if (!xmlData.contains(tagName)) {
-			// Tag wasn't there to begin with
-			System.out.println("Tag not found: "+tagName);
-			return null;
+	// If-None-Match is a comma-separated list of entity tags, or "*" for any,
+	// compared weakly so a W/ prefix is ignored
+	static boolean matchesEtag(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*")) {
+				return true;
+			}
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals(etag)) {
+				return true;
+			}
 		}
+		return false;
+	}
+	
+	private String getServerInfo(Request request, final String fullUrl) throws IOException {
+		String key = ServerInfoCache.getKey(request.getUrl(), request.getParameters());
+		return serverInfoCache.get(key, new ServerInfoCache.Loader() {
+			@Override
+			public String load() throws IOException {
+				return fetchServerInfo(fullUrl);
+			}
+		});
+	}
+	
+	private String fetchServerInfo(String fullUrl) throws IOException {
+		// Other polls are waiting on this, so don't let a hung GFE hold them forever
+		okhttp3.Response upstream = HttpsHelper.openHttpResponse(httpObj, fullUrl, true);
 		
-		String startTag = "<"+tagName+">";
-		String endTag = "</"+tagName+">";
+		String serverInfoResp;
+		try (ResponseBody body = upstream.body()) {
+			serverInfoResp = serverInfoRewriter.rewrite(body.charStream());
+		} catch (XmlPullParserException e) {
+			throw new IOException(e);
+		}
 		
-		return xmlData.substring(xmlData.indexOf(startTag) + startTag.length(), xmlData.indexOf(endTag));
+		System.out.println("Response from server: "+serverInfoResp);
+		return serverInfoResp;
+	}
+	
+	// The /serverinfo rewrite rules, public so the benchmarks measure these exact rules
+	public static XmlRewriter createServerInfoRewriter(String reportedLocalAddress, String reportedRemoteAddress) {
+		return new XmlRewriter()
+				// Patch IP addresses to desired values
+				.replace("LocalIP", reportedLocalAddress)
+				.replace("ExternalIP", reportedRemoteAddress)
+				// Change the host name to add an extension to the name
+				.transform("hostname", new XmlRewriter.Transform() {
+					@Override
+					public String apply(String hostname) {
+						return hostname + " (Open)";
+					}
+				})
+				// Change the unique ID so it appears as a different device
+				.transform("uniqueid", new XmlRewriter.Transform() {
+					@Override
+					public String apply(String uniqueId) {
+						if (uniqueId.isEmpty()) {
+							return uniqueId;
+						}
+						else if (Character.isDigit(uniqueId.charAt(0))) {
+							return "a" + uniqueId.substring(1);
+						}
+						else {
+							return "0" + uniqueId.substring(1);
+						}
+					}
+				});
 	}
 	
 	public void start(int serverPort, boolean https) throws Exception {
+		start(null, serverPort, https);
+	}
+	
+	// Throws a BindException if the port is already taken on this address
+	public void start(InetAddress bindAddress, int serverPort, boolean https) throws Exception {
+		ServerConfig config = new ServerConfig().setExecutor(ConnectionExecutors.newConnectionExecutor(
+				(https ? "HTTPS-" : "HTTP-")+serverPort)).setTrafficClass(httpTrafficClass)
+				.setBindAddress(bindAddress);
+		if (https) {
+			config.setConnectionListener(handshakeStats);
+		}
+		if (!ConnectionExecutors.isVirtualThreadSupported()) {
+			// Idle keep-alive connections hold pool threads, so leave room for new clients
+			config.setMaxIdleConnections(ConnectionExecutors.DEFAULT_MAX_POOL_THREADS / 2);
+		}
+		
 		EmbeddedServer.createInstance(serverPort,
-				https ? createSslContext() : null,
+				https ? getSslContext() : null,
 				new HttpRequestHandler() {
 					@Override
 					public Response handleRequest(Type type, String url,
 							Map<String, String> parameters) {
-						String fullUrl = constructFullUrlString(url, parameters);
+						return handleRequest(new Request(type, url, parameters, null, null));
+					}
+					
+					@Override
+					public Response handleRequest(Request request) {
+						String fullUrl = constructFullUrlString(request.getUrl(), request.getParameters());
 						System.out.println("Got request: "+fullUrl);
 						
 						Response resp = new Response();
@@ -171,29 +365,8 @@ public class HttpsRelay {
 							resp.setContentType("text/plain");
 
 							try {
-								String serverInfoResp = HttpsHelper.openHttpConnectionToString(httpObj, fullUrl);
-								
-								// Patch IP addresses to desired values
-								serverInfoResp = patchXmlElement("LocalIP", reportedLocalAddress, serverInfoResp);
-								serverInfoResp = patchXmlElement("ExternalIP", reportedRemoteAddress, serverInfoResp);
-								
-								// Change the host name to add an extension to the name
-								String hostname = getXmlElement("hostname", serverInfoResp);
-								hostname += " (Open)";
-								serverInfoResp = patchXmlElement("hostname", hostname, serverInfoResp);
+								String serverInfoResp = getServerInfo(request, fullUrl);
 								
-								// Change the unique ID so it appears as a different device
-								String uniqueId = getXmlElement("uniqueid", serverInfoResp);
-								if (Character.isDigit(uniqueId.charAt(0))) {
-									uniqueId = "a" + uniqueId.substring(1);
-								}
-								else {
-									uniqueId = "0" + uniqueId.substring(1);
-								}
-								serverInfoResp = patchXmlElement("uniqueid", uniqueId, serverInfoResp);
-								
-								System.out.println("Response from server: "+serverInfoResp);
-
 								resp.addContent(serverInfoResp);
 								resp.setOk();
 							} catch (Exception e) {
@@ -202,27 +375,18 @@ public class HttpsRelay {
 							}
 						}
 						else if (fullUrl.startsWith("/appasset")) {
-							resp.setContentType("image/png");
-							
 							try {
-								byte[] asset = HttpsHelper.openHttpConnectionToBytes(httpObj, fullUrl);
-								System.out.println("PNG asset received");
-								resp.setBinaryContent(asset);
-								resp.setOk();
+								serveAppAsset(request, fullUrl, resp);
 							} catch (Exception e) {
 								e.printStackTrace();
 								resp.setError(e);
 							}
 						}
 						else {
-							resp.setContentType("text/plain");
-							
 							// Just pass the request on
 							try {
-								String content = HttpsHelper.openHttpConnectionToString(httpObj, fullUrl);
-								System.out.println("Response from server (passing unmodified): "+content);
-								resp.addContent(content);
-								resp.setOk();
+								streamUpstreamResponse(HttpsHelper.openHttpResponse(httpObj, fullUrl), resp, "text/plain");
+								System.out.println("Streaming response from server (passing unmodified)");
 							} catch (Exception e) {
 								e.printStackTrace();
 								resp.setError(e);
@@ -231,7 +395,7 @@ public class HttpsRelay {
 						
 						return resp;
 					}
-		});
+		}, config);
 		if (https) {
 			System.out.println("HTTPS server listening on "+serverPort);
 		}
@@ -0,0 +1,134 @@
+package opengferelay.https;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Clients poll /serverinfo every few seconds while they're open, which
+// turns into a GFE round trip and an XML rewrite each time. This keeps
+// the rewritten document for a short TTL and coalesces concurrent polls
+// so only one of them fetches from GFE while the others wait for it.
+//
+// The fetch always goes to GFE with our own identity, so the document only
+// depends on the request we pass on. Entries are keyed by that request minus
+// the uuid parameter, which is different every time. Polls from clients
+// that send the same uniqueid share an entry.
+class ServerInfoCache {
+	interface Loader {
+		String load() throws IOException;
+	}
+
+	// Stale entries are swept once the map grows past this
+	private static final int SWEEP_THRESHOLD = 256;
+
+	// Differs per request without changing the answer
+	private static final String IGNORED_PARAMETER = "uuid";
+
+	private final long ttlNs;
+
+	// How long a poll waits for someone else's fetch before giving up
+	private final long waitTimeoutMs;
+
+	// Guarded by itself
+	private final HashMap<String, Entry> entries = new HashMap<>();
+
+	private static class Entry {
+		final CompletableFuture<String> document = new CompletableFuture<>();
+		volatile long loadTime;
+
+		// In-flight entries are never stale so that concurrent callers join them
+		boolean isStale(long now, long ttlNs) {
+			if (!document.isDone()) {
+				return false;
+			}
+			return document.isCompletedExceptionally() || now - loadTime >= ttlNs;
+		}
+	}
+
+	ServerInfoCache(long ttlMs, long waitTimeoutMs) {
+		this.ttlNs = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+		this.waitTimeoutMs = waitTimeoutMs;
+	}
+
+	// Builds the key for a request from its URL and the parameters passed on to GFE
+	static String getKey(String url, Map<String, String> parameters) {
+		TreeMap<String, String> sortedParameters = new TreeMap<>(parameters);
+		sortedParameters.remove(IGNORED_PARAMETER);
+
+		StringBuilder key = new StringBuilder(url);
+		char separator = '?';
+		for (Map.Entry<String, String> entry : sortedParameters.entrySet()) {
+			key.append(separator).append(entry.getKey()).append('=').append(entry.getValue());
+			separator = '&';
+		}
+		return key.toString();
+	}
+
+	String get(String key, Loader loader) throws IOException {
+		if (ttlNs <= 0) {
+			return loader.load();
+		}
+
+		long now = System.nanoTime();
+		Entry entry;
+		boolean owner = false;
+
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry == null || entry.isStale(now, ttlNs)) {
+				if (entries.size() >= SWEEP_THRESHOLD) {
+					removeStaleEntries(now);
+				}
+				entry = new Entry();
+				entries.put(key, entry);
+				owner = true;
+			}
+		}
+
+		if (owner) {
+			// Fetch outside the lock so other clients aren't held up
+			try {
+				String document = loader.load();
+				entry.loadTime = System.nanoTime();
+				entry.document.complete(document);
+				return document;
+			} catch (IOException | RuntimeException e) {
+				// Failed entries are stale, so the next poll retries
+				entry.document.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		try {
+			return entry.document.get(waitTimeoutMs, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			// The owner's fetch is still bounded by its read timeout and will
+			// finish the entry eventually; we just stop waiting for it
+			throw new SocketTimeoutException("Timed out after "+waitTimeoutMs+" ms waiting for /serverinfo from GFE");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private void removeStaleEntries(long now) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isStale(now, ttlNs)) {
+				iterator.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package opengferelay.https;
+
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+
+import org.veryquick.embweb.ConnectionListener;
+
+// Counts full and resumed TLS handshakes on the relay's HTTPS listener.
+// A session created before its connection was accepted must have been
+// resumed from the session cache or a session ticket.
+public class TlsHandshakeStats implements ConnectionListener {
+	private final LongAdder fullHandshakes = new LongAdder();
+	private final LongAdder resumedHandshakes = new LongAdder();
+
+	@Override
+	public void connectionAccepted(Socket socket) {
+		if (!(socket instanceof SSLSocket)) {
+			return;
+		}
+
+		final long acceptTime = System.currentTimeMillis();
+		((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+			@Override
+			public void handshakeCompleted(HandshakeCompletedEvent event) {
+				if (event.getSession().getCreationTime() < acceptTime) {
+					resumedHandshakes.increment();
+				}
+				else {
+					fullHandshakes.increment();
+				}
+			}
+		});
+	}
+
+	public long getFullHandshakes() {
+		return fullHandshakes.sum();
+	}
+
+	public long getResumedHandshakes() {
+		return resumedHandshakes.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "full="+getFullHandshakes()+" resumed="+getResumedHandshakes();
+	}
+}
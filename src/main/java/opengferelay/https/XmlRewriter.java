@@ -0,0 +1,250 @@
+package opengferelay.https;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+// Rewrites the text content of selected elements in a single streaming
+// pass over an XML document. Rules are registered per tag name up front,
+// so adding another rewrite doesn't add another pass over the document.
+// Everything that isn't covered by a rule is copied through as-is.
+//
+// Rules only look at the text content of the element, which is all the
+// GFE responses use. Once configured, a rewriter may be shared between
+// threads.
+public class XmlRewriter {
+	public interface Transform {
+		// Returns the new text content for the element, or null to remove the element entirely
+		String apply(String text);
+	}
+
+	private static final String PROPERTY_XMLDECL_VERSION = "http://xmlpull.org/v1/doc/properties.html#xmldecl-version";
+	private static final String PROPERTY_XMLDECL_STANDALONE = "http://xmlpull.org/v1/doc/properties.html#xmldecl-standalone";
+
+	private static XmlPullParserFactory factory;
+
+	private final HashMap<String, Transform> rules = new HashMap<>();
+
+	public XmlRewriter replace(String tagName, final String newValue) {
+		return transform(tagName, new Transform() {
+			@Override
+			public String apply(String text) {
+				return newValue;
+			}
+		});
+	}
+
+	public XmlRewriter remove(String tagName) {
+		return transform(tagName, new Transform() {
+			@Override
+			public String apply(String text) {
+				return null;
+			}
+		});
+	}
+
+	public XmlRewriter transform(String tagName, Transform transform) {
+		rules.put(tagName, transform);
+		return this;
+	}
+
+	private static synchronized XmlPullParser newPullParser() throws XmlPullParserException {
+		if (factory == null) {
+			factory = XmlPullParserFactory.newInstance();
+			// We write back the raw names, so leave the prefixes alone
+			factory.setNamespaceAware(false);
+		}
+		return factory.newPullParser();
+	}
+
+	public String rewrite(Reader in) throws XmlPullParserException, IOException {
+		StringWriter out = new StringWriter();
+		rewrite(in, out);
+		return out.toString();
+	}
+
+	public void rewrite(Reader in, Writer out) throws XmlPullParserException, IOException {
+		XmlPullParser xpp = newPullParser();
+		xpp.setInput(in);
+
+		// Set after writing an empty element as <tag/>, since the parser still reports its END_TAG
+		boolean skipEndTag = false;
+
+		// The parser only reads the XML declaration once it moves past START_DOCUMENT
+		int eventType = xpp.nextToken();
+		writeXmlDecl(xpp, out);
+
+		while (eventType != XmlPullParser.END_DOCUMENT) {
+			switch (eventType) {
+			case XmlPullParser.START_TAG:
+				Transform transform = rules.get(xpp.getName());
+				if (transform != null) {
+					rewriteElement(xpp, transform, out);
+				}
+				else {
+					skipEndTag = xpp.isEmptyElementTag();
+					writeStartTag(xpp, out, skipEndTag);
+				}
+				break;
+			case XmlPullParser.END_TAG:
+				if (skipEndTag) {
+					skipEndTag = false;
+				}
+				else {
+					out.write("</");
+					out.write(xpp.getName());
+					out.write('>');
+				}
+				break;
+			case XmlPullParser.TEXT:
+			case XmlPullParser.IGNORABLE_WHITESPACE:
+				writeEscaped(xpp.getText(), false, out);
+				break;
+			case XmlPullParser.ENTITY_REF:
+				if (xpp.getText() != null) {
+					writeEscaped(xpp.getText(), false, out);
+				}
+				else {
+					out.write('&');
+					out.write(xpp.getName());
+					out.write(';');
+				}
+				break;
+			case XmlPullParser.CDSECT:
+				out.write("<![CDATA[");
+				out.write(xpp.getText());
+				out.write("]]>");
+				break;
+			case XmlPullParser.COMMENT:
+				out.write("<!--");
+				out.write(xpp.getText());
+				out.write("-->");
+				break;
+			case XmlPullParser.PROCESSING_INSTRUCTION:
+				out.write("<?");
+				out.write(xpp.getText());
+				out.write("?>");
+				break;
+			case XmlPullParser.DOCDECL:
+				out.write("<!DOCTYPE");
+				out.write(xpp.getText());
+				out.write('>');
+				break;
+			}
+			eventType = xpp.nextToken();
+		}
+
+		out.flush();
+	}
+
+	// The parser consumes the XML declaration rather than reporting it as a token,
+	// leaving only its properties behind. Must be called after the first nextToken().
+	private static void writeXmlDecl(XmlPullParser xpp, Writer out) throws IOException {
+		Object version = xpp.getProperty(PROPERTY_XMLDECL_VERSION);
+		if (version == null) {
+			return;
+		}
+
+		// The output is always written back as UTF-8
+		out.write("<?xml version=\""+version+"\" encoding=\"UTF-8\"");
+		Object standalone = xpp.getProperty(PROPERTY_XMLDECL_STANDALONE);
+		if (standalone != null) {
+			out.write(" standalone=\""+(Boolean.TRUE.equals(standalone) ? "yes" : "no")+"\"");
+		}
+		out.write("?>");
+	}
+
+	private static void writeStartTag(XmlPullParser xpp, Writer out, boolean empty) throws IOException {
+		out.write('<');
+		out.write(xpp.getName());
+		for (int i = 0; i < xpp.getAttributeCount(); i++) {
+			out.write(' ');
+			out.write(xpp.getAttributeName(i));
+			out.write("=\"");
+			writeEscaped(xpp.getAttributeValue(i), true, out);
+			out.write('"');
+		}
+		out.write(empty ? "/>" : ">");
+	}
+
+	// Called on the START_TAG of a matched element. Consumes everything up to
+	// and including its END_TAG and writes the transformed element.
+	private static void rewriteElement(XmlPullParser xpp, Transform transform, Writer out)
+			throws XmlPullParserException, IOException {
+		// The start tag has to be written after we know whether the element survives
+		String name = xpp.getName();
+		StringWriter startTag = new StringWriter();
+		writeStartTag(xpp, startTag, false);
+
+		// Empty elements are still reported with a matching END_TAG
+		StringBuilder text = new StringBuilder();
+		int depth = 1;
+		while (depth > 0) {
+			switch (xpp.nextToken()) {
+			case XmlPullParser.START_TAG:
+				depth++;
+				break;
+			case XmlPullParser.END_TAG:
+				depth--;
+				break;
+			case XmlPullParser.TEXT:
+			case XmlPullParser.CDSECT:
+			case XmlPullParser.ENTITY_REF:
+				if (xpp.getText() != null) {
+					text.append(xpp.getText());
+				}
+				break;
+			case XmlPullParser.END_DOCUMENT:
+				throw new XmlPullParserException("Unexpected end of document in <"+name+">");
+			}
+		}
+
+		String newText = transform.apply(text.toString());
+		if (newText == null) {
+			return;
+		}
+
+		out.write(startTag.toString());
+		writeEscaped(newText, false, out);
+		out.write("</");
+		out.write(name);
+		out.write('>');
+	}
+
+	private static void writeEscaped(String text, boolean attribute, Writer out) throws IOException {
+		int start = 0;
+		for (int i = 0; i < text.length(); i++) {
+			String replacement;
+			switch (text.charAt(i)) {
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '"':
+				replacement = attribute ? "&quot;" : null;
+				break;
+			default:
+				replacement = null;
+				break;
+			}
+
+			if (replacement != null) {
+				out.write(text, start, i - start);
+				out.write(replacement);
+				start = i + 1;
+			}
+		}
+		out.write(text, start, text.length() - start);
+	}
+}
@@ -0,0 +1,17 @@
+package opengferelay.metrics;
+
+public enum Direction {
+	CLIENT_TO_REMOTE("client_to_remote"),
+	REMOTE_TO_CLIENT("remote_to_client");
+
+	private final String label;
+
+	Direction(String label) {
+		this.label = label;
+	}
+
+	// Value used for the direction label when exporting
+	public String getLabel() {
+		return label;
+	}
+}
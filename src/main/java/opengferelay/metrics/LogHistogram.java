@@ -0,0 +1,49 @@
+package opengferelay.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Histogram with power-of-two bucket bounds. Bucket i counts values no larger
+// than 2^(minExponent + i), and the last bucket counts everything larger
+// than that. Recording is lock-free, so the relay threads never block on
+// a scrape.
+public class LogHistogram {
+	private final int minExponent;
+	private final AtomicLongArray buckets;
+	private final LongAdder sum = new LongAdder();
+
+	public LogHistogram(int minExponent, int boundedBuckets) {
+		this.minExponent = minExponent;
+		this.buckets = new AtomicLongArray(boundedBuckets + 1);
+	}
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		// Smallest exponent e with value <= 2^e
+		int exponent = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+		int bucket = Math.max(0, exponent - minExponent);
+		buckets.incrementAndGet(Math.min(bucket, buckets.length() - 1));
+		sum.add(value);
+	}
+
+	// Number of buckets with a finite upper bound
+	public int getBoundedBucketCount() {
+		return buckets.length() - 1;
+	}
+
+	public long getUpperBound(int bucket) {
+		return 1L << (minExponent + bucket);
+	}
+
+	// bucket may be getBoundedBucketCount() for values over the last bound
+	public long getBucketCount(int bucket) {
+		return buckets.get(bucket);
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+}
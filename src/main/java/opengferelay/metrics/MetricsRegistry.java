@@ -0,0 +1,28 @@
+package opengferelay.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Every relay registers its metrics here when it starts
+public class MetricsRegistry {
+	private static final List<UdpRelayMetrics> udpRelays = new CopyOnWriteArrayList<>();
+	private static final List<TcpRelayMetrics> tcpRelays = new CopyOnWriteArrayList<>();
+
+	private MetricsRegistry() {}
+
+	public static void register(UdpRelayMetrics metrics) {
+		udpRelays.add(metrics);
+	}
+
+	public static void register(TcpRelayMetrics metrics) {
+		tcpRelays.add(metrics);
+	}
+
+	public static List<UdpRelayMetrics> getUdpRelays() {
+		return udpRelays;
+	}
+
+	public static List<TcpRelayMetrics> getTcpRelays() {
+		return tcpRelays;
+	}
+}
@@ -0,0 +1,23 @@
+package opengferelay.metrics;
+
+import java.net.InetAddress;
+
+import org.veryquick.embweb.EmbeddedServer;
+import org.veryquick.embweb.ServerConfig;
+
+public class MetricsServer {
+	private MetricsServer() {}
+
+	public static void start(int port) throws Exception {
+		start(null, port);
+	}
+
+	// Serves plain HTTP, bound to all interfaces unless a bind address is given,
+	// so the port shouldn't be exposed publicly
+	public static void start(InetAddress bindAddress, int port) throws Exception {
+		EmbeddedServer.createInstance(port, null, new PrometheusHandler(),
+				new ServerConfig().setBindAddress(bindAddress));
+		System.out.println("Metrics available on http://"+
+				(bindAddress != null ? bindAddress.getHostAddress() : "0.0.0.0")+":"+port+"/metrics");
+	}
+}
@@ -0,0 +1,178 @@
+package opengferelay.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+import org.veryquick.embweb.HttpRequestHandler;
+import org.veryquick.embweb.Response;
+
+// Serves all registered relay metrics on /metrics in the Prometheus text format
+public class PrometheusHandler implements HttpRequestHandler {
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	@Override
+	public Response handleRequest(Type type, String url, Map<String, String> parameters) {
+		Response resp = new Response();
+		if (!url.equals("/metrics")) {
+			resp.setNotFound(url);
+			return resp;
+		}
+
+		resp.setContentType(CONTENT_TYPE);
+		resp.addContent(render());
+		resp.setOk();
+		return resp;
+	}
+
+	public static String render() {
+		StringBuilder out = new StringBuilder(16384);
+		List<UdpRelayMetrics> udpRelays = MetricsRegistry.getUdpRelays();
+		List<TcpRelayMetrics> tcpRelays = MetricsRegistry.getTcpRelays();
+
+		header(out, "opengferelay_udp_packets_received_total", "counter", "Datagrams received by UDP relays");
+		for (UdpRelayMetrics m : udpRelays) {
+			for (Direction d : Direction.values()) {
+				sample(out, "opengferelay_udp_packets_received_total", m.getPort(), d, m.getPacketsReceived(d));
+			}
+		}
+		header(out, "opengferelay_udp_bytes_received_total", "counter", "Payload bytes received by UDP relays");
+		for (UdpRelayMetrics m : udpRelays) {
+			for (Direction d : Direction.values()) {
+				sample(out, "opengferelay_udp_bytes_received_total", m.getPort(), d, m.getBytesReceived(d));
+			}
+		}
+		header(out, "opengferelay_udp_packets_sent_total", "counter", "Datagrams forwarded by UDP relays");
+		for (UdpRelayMetrics m : udpRelays) {
+			for (Direction d : Direction.values()) {
+				sample(out, "opengferelay_udp_packets_sent_total", m.getPort(), d, m.getPacketsSent(d));
+			}
+		}
+		header(out, "opengferelay_udp_bytes_sent_total", "counter", "Payload bytes forwarded by UDP relays");
+		for (UdpRelayMetrics m : udpRelays) {
+			for (Direction d : Direction.values()) {
+				sample(out, "opengferelay_udp_bytes_sent_total", m.getPort(), d, m.getBytesSent(d));
+			}
+		}
+		header(out, "opengferelay_udp_drops_total", "counter", "Datagrams dropped by UDP relays");
+		for (UdpRelayMetrics m : udpRelays) {
+			for (UdpRelayMetrics.DropReason reason : UdpRelayMetrics.DropReason.values()) {
+				out.append("opengferelay_udp_drops_total{port=\"").append(m.getPort());
+				out.append("\",reason=\"").append(reason.getLabel()).append("\"} ");
+				out.append(m.getDrops(reason)).append('\n');
+			}
+		}
+		header(out, "opengferelay_udp_sessions", "gauge", "Active UDP relay sessions");
+		for (UdpRelayMetrics m : udpRelays) {
+			sample(out, "opengferelay_udp_sessions", m.getPort(), null, m.getActiveSessions());
+		}
+		header(out, "opengferelay_udp_forward_latency_seconds", "histogram", "Time from receiving a datagram to forwarding it");
+		for (UdpRelayMetrics m : udpRelays) {
+			for (Direction d : Direction.values()) {
+				histogram(out, "opengferelay_udp_forward_latency_seconds", m.getPort(), d,
+						m.getForwardLatency(d), NANOS_PER_SECOND);
+			}
+		}
+		header(out, "opengferelay_udp_queue_depth", "histogram", "Datagrams drained from a socket per wakeup");
+		for (UdpRelayMetrics m : udpRelays) {
+			histogram(out, "opengferelay_udp_queue_depth", m.getPort(), null, m.getQueueDepth(), 1);
+		}
+
+		header(out, "opengferelay_tcp_connections_total", "counter", "Connections accepted by TCP relays");
+		for (TcpRelayMetrics m : tcpRelays) {
+			sample(out, "opengferelay_tcp_connections_total", m.getPort(), null, m.getConnectionsAccepted());
+		}
+		header(out, "opengferelay_tcp_connect_failures_total", "counter", "Failed connections to the remote host");
+		for (TcpRelayMetrics m : tcpRelays) {
+			sample(out, "opengferelay_tcp_connect_failures_total", m.getPort(), null, m.getConnectFailures());
+		}
+		header(out, "opengferelay_tcp_connect_retries_total", "counter", "Connection attempts to the remote host that were retried");
+		for (TcpRelayMetrics m : tcpRelays) {
+			sample(out, "opengferelay_tcp_connect_retries_total", m.getPort(), null, m.getConnectRetries());
+		}
+		header(out, "opengferelay_tcp_pending_connects", "gauge", "Connections to the remote host in progress");
+		for (TcpRelayMetrics m : tcpRelays) {
+			sample(out, "opengferelay_tcp_pending_connects", m.getPort(), null, m.getPendingConnects());
+		}
+		header(out, "opengferelay_tcp_active_connections", "gauge", "Connections currently being relayed");
+		for (TcpRelayMetrics m : tcpRelays) {
+			sample(out, "opengferelay_tcp_active_connections", m.getPort(), null, m.getActiveConnections());
+		}
+		header(out, "opengferelay_tcp_bytes_total", "counter", "Bytes forwarded by TCP relays");
+		for (TcpRelayMetrics m : tcpRelays) {
+			for (Direction d : Direction.values()) {
+				sample(out, "opengferelay_tcp_bytes_total", m.getPort(), d, m.getBytesForwarded(d));
+			}
+		}
+		header(out, "opengferelay_tcp_pending_bytes", "gauge", "Bytes buffered by TCP relays waiting to be written");
+		for (TcpRelayMetrics m : tcpRelays) {
+			for (Direction d : Direction.values()) {
+				sample(out, "opengferelay_tcp_pending_bytes", m.getPort(), d, m.getPendingBytes(d));
+			}
+		}
+		header(out, "opengferelay_tcp_half_closes_total", "counter", "Output shutdowns passed on from one side to the other");
+		for (TcpRelayMetrics m : tcpRelays) {
+			for (Direction d : Direction.values()) {
+				sample(out, "opengferelay_tcp_half_closes_total", m.getPort(), d, m.getHalfCloses(d));
+			}
+		}
+		header(out, "opengferelay_tcp_backpressure_stall_seconds", "histogram",
+				"Time a direction stopped reading because the receiving side was slow");
+		for (TcpRelayMetrics m : tcpRelays) {
+			for (Direction d : Direction.values()) {
+				histogram(out, "opengferelay_tcp_backpressure_stall_seconds", m.getPort(), d,
+						m.getBackpressureStalls(d), NANOS_PER_SECOND);
+			}
+		}
+
+		return out.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void labels(StringBuilder out, int port, Direction direction) {
+		out.append("port=\"").append(port).append('"');
+		if (direction != null) {
+			out.append(",direction=\"").append(direction.getLabel()).append('"');
+		}
+	}
+
+	private static void sample(StringBuilder out, String name, int port, Direction direction, long value) {
+		out.append(name).append('{');
+		labels(out, port, direction);
+		out.append("} ").append(value).append('\n');
+	}
+
+	// Values are divided by scale to convert them to the exported unit
+	private static void histogram(StringBuilder out, String name, int port, Direction direction,
+			LogHistogram histogram, double scale) {
+		// Buckets are read one at a time while the relay keeps recording, so the
+		// count is derived from them to keep +Inf and _count consistent
+		long cumulative = 0;
+		for (int i = 0; i <= histogram.getBoundedBucketCount(); i++) {
+			cumulative += histogram.getBucketCount(i);
+
+			out.append(name).append("_bucket{");
+			labels(out, port, direction);
+			out.append(",le=\"");
+			if (i == histogram.getBoundedBucketCount()) {
+				out.append("+Inf");
+			}
+			else {
+				out.append(histogram.getUpperBound(i) / scale);
+			}
+			out.append("\"} ").append(cumulative).append('\n');
+		}
+
+		out.append(name).append("_sum{");
+		labels(out, port, direction);
+		out.append("} ").append(histogram.getSum() / scale).append('\n');
+
+		out.append(name).append("_count{");
+		labels(out, port, direction);
+		out.append("} ").append(cumulative).append('\n');
+	}
+}
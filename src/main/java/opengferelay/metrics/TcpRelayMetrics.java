@@ -0,0 +1,118 @@
+package opengferelay.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters for a single TCP relay port
+public class TcpRelayMetrics {
+	private final int port;
+
+	private final LongAdder connectionsAccepted = new LongAdder();
+	private final LongAdder connectFailures = new LongAdder();
+	private final LongAdder connectRetries = new LongAdder();
+	private final LongAdder pendingConnects = new LongAdder();
+	private final LongAdder activeConnections = new LongAdder();
+	private final LongAdder[] bytesForwarded = UdpRelayMetrics.newAdders(Direction.values().length);
+
+	// Bytes read from one side that the other side hasn't accepted yet
+	private final LongAdder[] pendingBytes = UdpRelayMetrics.newAdders(Direction.values().length);
+
+	// Shutdowns of one side's output that were passed on to the other side
+	private final LongAdder[] halfCloses = UdpRelayMetrics.newAdders(Direction.values().length);
+
+	// How long a direction stopped reading because the receiving side wasn't
+	// keeping up, in nanoseconds from 1us up to about 17s
+	private final LogHistogram[] backpressureStalls = new LogHistogram[Direction.values().length];
+
+	public TcpRelayMetrics(int port) {
+		this.port = port;
+		for (int i = 0; i < backpressureStalls.length; i++) {
+			backpressureStalls[i] = new LogHistogram(10, 25);
+		}
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void connectionAccepted() {
+		connectionsAccepted.increment();
+	}
+
+	public void connectFailed() {
+		connectFailures.increment();
+	}
+
+	public void connectRetried() {
+		connectRetries.increment();
+	}
+
+	public void connectStarted() {
+		pendingConnects.increment();
+	}
+
+	// Called once a connect has succeeded or given up
+	public void connectFinished() {
+		pendingConnects.decrement();
+	}
+
+	public void connectionOpened() {
+		activeConnections.increment();
+	}
+
+	public void connectionClosed() {
+		activeConnections.decrement();
+	}
+
+	public void recordForwarded(Direction direction, long bytes) {
+		bytesForwarded[direction.ordinal()].add(bytes);
+	}
+
+	// delta is negative when buffered bytes are written or discarded
+	public void addPendingBytes(Direction direction, long delta) {
+		pendingBytes[direction.ordinal()].add(delta);
+	}
+
+	public void recordHalfClose(Direction direction) {
+		halfCloses[direction.ordinal()].increment();
+	}
+
+	public void recordStall(Direction direction, long stallNanos) {
+		backpressureStalls[direction.ordinal()].record(stallNanos);
+	}
+
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.sum();
+	}
+
+	public long getConnectFailures() {
+		return connectFailures.sum();
+	}
+
+	public long getConnectRetries() {
+		return connectRetries.sum();
+	}
+
+	public long getPendingConnects() {
+		return pendingConnects.sum();
+	}
+
+	public long getActiveConnections() {
+		return activeConnections.sum();
+	}
+
+	public long getBytesForwarded(Direction direction) {
+		return bytesForwarded[direction.ordinal()].sum();
+	}
+
+	public long getPendingBytes(Direction direction) {
+		return pendingBytes[direction.ordinal()].sum();
+	}
+
+	public long getHalfCloses(Direction direction) {
+		return halfCloses[direction.ordinal()].sum();
+	}
+
+	public LogHistogram getBackpressureStalls(Direction direction) {
+		return backpressureStalls[direction.ordinal()];
+	}
+}
@@ -0,0 +1,122 @@
+package opengferelay.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters for a single UDP relay port. These are updated from the relay's
+// event loop and read by the metrics endpoint.
+public class UdpRelayMetrics {
+	public enum DropReason {
+		// Datagram from the remote host on the relay port rather than a session port
+		UNSOLICITED_REMOTE("unsolicited_remote"),
+		SESSION_LIMIT("session_limit"),
+		SESSION_SETUP_FAILED("session_setup_failed"),
+		// Datagram on a session port from somebody other than the remote host
+		UNEXPECTED_SOURCE("unexpected_source"),
+		// The socket send buffer was full, so the kernel didn't take the datagram
+		SEND_BUFFER_FULL("send_buffer_full"),
+		SEND_FAILED("send_failed");
+
+		private final String label;
+
+		DropReason(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	private final int port;
+
+	private final LongAdder[] packetsReceived = newAdders(Direction.values().length);
+	private final LongAdder[] bytesReceived = newAdders(Direction.values().length);
+	private final LongAdder[] packetsSent = newAdders(Direction.values().length);
+	private final LongAdder[] bytesSent = newAdders(Direction.values().length);
+	private final LongAdder[] drops = newAdders(DropReason.values().length);
+	private final LongAdder activeSessions = new LongAdder();
+
+	// Receive-to-send time in nanoseconds, from 1us up to about 1s
+	private final LogHistogram[] forwardLatency = new LogHistogram[Direction.values().length];
+
+	// Datagrams drained from a socket per wakeup, up to 256
+	private final LogHistogram queueDepth = new LogHistogram(0, 9);
+
+	public UdpRelayMetrics(int port) {
+		this.port = port;
+		for (int i = 0; i < forwardLatency.length; i++) {
+			forwardLatency[i] = new LogHistogram(10, 21);
+		}
+	}
+
+	static LongAdder[] newAdders(int count) {
+		LongAdder[] adders = new LongAdder[count];
+		for (int i = 0; i < count; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void recordReceived(Direction direction, int bytes) {
+		packetsReceived[direction.ordinal()].increment();
+		bytesReceived[direction.ordinal()].add(bytes);
+	}
+
+	public void recordSent(Direction direction, int bytes, long forwardNanos) {
+		packetsSent[direction.ordinal()].increment();
+		bytesSent[direction.ordinal()].add(bytes);
+		forwardLatency[direction.ordinal()].record(forwardNanos);
+	}
+
+	public void recordDrop(DropReason reason) {
+		drops[reason.ordinal()].increment();
+	}
+
+	public void recordQueueDepth(int datagrams) {
+		queueDepth.record(datagrams);
+	}
+
+	public void sessionOpened() {
+		activeSessions.increment();
+	}
+
+	public void sessionClosed() {
+		activeSessions.decrement();
+	}
+
+	public long getPacketsReceived(Direction direction) {
+		return packetsReceived[direction.ordinal()].sum();
+	}
+
+	public long getBytesReceived(Direction direction) {
+		return bytesReceived[direction.ordinal()].sum();
+	}
+
+	public long getPacketsSent(Direction direction) {
+		return packetsSent[direction.ordinal()].sum();
+	}
+
+	public long getBytesSent(Direction direction) {
+		return bytesSent[direction.ordinal()].sum();
+	}
+
+	public long getDrops(DropReason reason) {
+		return drops[reason.ordinal()].sum();
+	}
+
+	public long getActiveSessions() {
+		return activeSessions.sum();
+	}
+
+	public LogHistogram getForwardLatency(Direction direction) {
+		return forwardLatency[direction.ordinal()];
+	}
+
+	public LogHistogram getQueueDepth() {
+		return queueDepth;
+	}
+}
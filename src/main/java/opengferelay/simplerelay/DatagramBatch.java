@@ -0,0 +1,69 @@
+package opengferelay.simplerelay;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+
+// A fixed set of slots that a relay receives a burst of datagrams into and
+// forwards them out of again. NioDatagramBatch makes one system call per
+// datagram; MmsgDatagramBatch moves the whole burst with a single
+// recvmmsg()/sendmmsg() using the Foreign Function & Memory API. It's only
+// built for JDK 22 and newer (src/java22), only when the build is run with
+// -PmmsgEngine, and only works on Linux, so it's loaded by name and the
+// relay falls back to NioDatagramBatch without it.
+abstract class DatagramBatch {
+	static final int MAX_DATAGRAM_SIZE = 1500;
+
+	private static final String NATIVE_BATCH_CLASS = "opengferelay.simplerelay.MmsgDatagramBatch";
+
+	// Receives queued datagrams into the slots, starting from the first, until
+	// the socket has nothing more or every slot is full. Never blocks.
+	// Returns the number of datagrams received.
+	abstract int receive(DatagramChannel channel) throws IOException;
+
+	// Sends the datagrams in slots [from, to) to the target. Never blocks, so
+	// datagrams that don't fit in the socket buffer are discarded. Returns how
+	// many were sent, which are always the first ones of the range.
+	abstract int send(DatagramChannel channel, int from, int to, SocketAddress target) throws IOException;
+
+	abstract int getCapacity();
+
+	abstract int getLength(int slot);
+
+	// Datagrams received back to back from the same sender return the same
+	// address object, so callers can cache by identity
+	abstract SocketAddress getSource(int slot);
+
+	// System.nanoTime() when the datagram was received
+	abstract long getReceiveTime(int slot);
+
+	static DatagramBatch createPortable(int capacity) {
+		return new NioDatagramBatch(capacity);
+	}
+
+	// Throws UnsupportedOperationException saying why if native batching isn't available here
+	static DatagramBatch createNative(int capacity) {
+		Class<?> batchClass;
+		try {
+			batchClass = Class.forName(NATIVE_BATCH_CLASS);
+		} catch (ClassNotFoundException | LinkageError e) {
+			// Either it wasn't built, or this is an older JVM than the one it was built for
+			if (Runtime.version().feature() >= 22) {
+				throw new UnsupportedOperationException("recvmmsg/sendmmsg batching isn't in this build (see -PmmsgEngine)", e);
+			}
+			throw new UnsupportedOperationException("recvmmsg/sendmmsg batching needs JDK 22 or newer", e);
+		}
+
+		try {
+			return (DatagramBatch) batchClass.getDeclaredConstructor(int.class).newInstance(capacity);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof UnsupportedOperationException) {
+				throw (UnsupportedOperationException) e.getCause();
+			}
+			throw new UnsupportedOperationException("recvmmsg/sendmmsg batching failed to initialize: "+e.getCause(), e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("recvmmsg/sendmmsg batching failed to initialize: "+e, e);
+		}
+	}
+}
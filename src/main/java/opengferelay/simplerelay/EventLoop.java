@@ -0,0 +1,271 @@
+package opengferelay.simplerelay;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// A single selector thread that dispatches readiness events to the
+// handlers attached to each registered channel. Handlers always run
+// on the loop thread, so they don't need any locking of their own.
+class EventLoop {
+	interface Handler {
+		void handleEvent(SelectionKey key) throws IOException;
+	}
+
+	private final Selector selector;
+	private final Thread thread;
+	private final long busyPollNs;
+	private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+	// Handlers are called straight from the selector rather than through the
+	// selected-key set, which would allocate a set entry and an iterator on
+	// every wakeup
+	private final Consumer<SelectionKey> dispatcher = new Consumer<SelectionKey>() {
+		@Override
+		public void accept(SelectionKey key) {
+			dispatch(key);
+		}
+	};
+
+	// Only touched by the loop thread
+	private final PriorityQueue<TimerTask> timers = new PriorityQueue<>();
+	private long timerSequence;
+	private final ArrayDeque<Runnable> awaitingDeregistration = new ArrayDeque<>();
+
+	// Returned by schedule() so a timeout can be dropped once it's no longer
+	// needed, rather than sitting in the queue until it expires
+	final class TimerTask implements Comparable<TimerTask> {
+		private final long deadline;
+		private final Runnable task;
+
+		// Set on the loop thread when the timer is queued
+		private long sequence;
+		private boolean cancelled;
+
+		private TimerTask(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		// Stops the task from running if it hasn't already. Must be called from
+		// the loop thread.
+		void cancel() {
+			if (!cancelled) {
+				cancelled = true;
+				timers.remove(this);
+			}
+		}
+
+		@Override
+		public int compareTo(TimerTask other) {
+			int cmp = Long.compare(deadline - other.deadline, 0);
+			return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	EventLoop(String name) throws IOException {
+		this(name, Thread.NORM_PRIORITY, 0);
+	}
+
+	// With a busy-poll time, the loop keeps polling the selector without
+	// blocking for that long after each event before it goes back to sleep.
+	// That saves the wakeup latency for the next packet of a stream at the
+	// cost of burning a core while traffic is flowing.
+	EventLoop(String name, int priority, long busyPollMicros) throws IOException {
+		selector = Selector.open();
+		busyPollNs = TimeUnit.MICROSECONDS.toNanos(busyPollMicros);
+		thread = new Thread(name) {
+			@Override
+			public void run() {
+				runLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(priority);
+	}
+
+	// Starts a loop of its own for latency-sensitive channels, so they never
+	// queue behind bulk traffic on a shared loop. Java has no way to pin the
+	// thread to a core, so the best we can do is raise its priority (which
+	// the JVM only honors on Linux with -XX:ThreadPriorityPolicy=1 as root).
+	static EventLoop startDedicated(String name, long busyPollMicros) throws IOException {
+		return start(name, Thread.MAX_PRIORITY, busyPollMicros);
+	}
+
+	static EventLoop start(String name, int priority, long busyPollMicros) throws IOException {
+		EventLoop loop = new EventLoop(name, priority, busyPollMicros);
+		loop.start();
+		return loop;
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	// Only safe to use for registration from the loop thread
+	Selector getSelector() {
+		return selector;
+	}
+
+	// Runs the task on the loop thread
+	void execute(Runnable task) {
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
+
+	// Runs the task on the loop thread once the delay has elapsed
+	TimerTask schedule(Runnable task, long delayMs) {
+		final TimerTask timer = new TimerTask(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs), task);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!timer.cancelled) {
+					timer.sequence = timerSequence++;
+					timers.add(timer);
+				}
+			}
+		});
+		return timer;
+	}
+
+	void register(final SelectableChannel channel, final int ops, final Handler handler) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.register(selector, ops, handler);
+				} catch (ClosedChannelException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	// Cancels the key and then runs the task on the loop thread once the channel
+	// is really deregistered, which the selector only does on its next select.
+	// Until then the channel can't be put back in blocking mode. Must be called
+	// from the loop thread.
+	void cancel(SelectionKey key, Runnable task) {
+		key.cancel();
+		awaitingDeregistration.add(task);
+	}
+
+	private static void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void runPendingTasks() {
+		Runnable task;
+		while ((task = pendingTasks.poll()) != null) {
+			runTask(task);
+		}
+	}
+
+	private void runExpiredTimers() {
+		long now = System.nanoTime();
+		TimerTask timer;
+		while ((timer = timers.peek()) != null && timer.deadline - now <= 0) {
+			timers.poll();
+			timer.cancelled = true;
+			runTask(timer.task);
+		}
+	}
+
+	private long getSelectTimeout() {
+		TimerTask timer = timers.peek();
+		if (timer == null) {
+			// Block until something happens
+			return 0;
+		}
+
+		// Round up so we don't spin until the deadline
+		long remainingNs = timer.deadline - System.nanoTime();
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNs + 999999));
+	}
+
+	// Polls without blocking until something is ready or the spin time since
+	// the last event runs out. Ready channels are handled as they're found.
+	// Returns the number of events handled, or -1 if the spin time ran out.
+	private int busyPoll(long lastEventTime) throws IOException {
+		while (System.nanoTime() - lastEventTime < busyPollNs) {
+			int events = selector.selectNow(dispatcher);
+			if (events != 0 || !pendingTasks.isEmpty()) {
+				return events;
+			}
+
+			TimerTask timer = timers.peek();
+			if (timer != null && timer.deadline - System.nanoTime() <= 0) {
+				return 0;
+			}
+
+			Thread.onSpinWait();
+		}
+		return -1;
+	}
+
+	private void dispatch(SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+
+		try {
+			((Handler) key.attachment()).handleEvent(key);
+		} catch (IOException | RuntimeException e) {
+			// A bug in one handler mustn't kill the loop for every other channel on it
+			e.printStackTrace();
+
+			// Drop the channel that failed, but keep serving the others
+			key.cancel();
+			try {
+				key.channel().close();
+			} catch (IOException e1) {}
+		}
+	}
+
+	private void runLoop() {
+		long lastEventTime = System.nanoTime() - busyPollNs;
+		for (;;) {
+			// Keys cancelled before this select are gone once it returns. A wakeup()
+			// from a handler can be swallowed by the select it runs in, so when
+			// there are any, don't block at all.
+			int deregistered = awaitingDeregistration.size();
+
+			int events;
+			try {
+				if (deregistered > 0) {
+					events = selector.selectNow(dispatcher);
+				}
+				else {
+					events = busyPollNs > 0 ? busyPoll(lastEventTime) : -1;
+					if (events < 0) {
+						events = selector.select(dispatcher, getSelectTimeout());
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+
+			if (events > 0) {
+				lastEventTime = System.nanoTime();
+			}
+
+			for (int i = 0; i < deregistered; i++) {
+				runTask(awaitingDeregistration.poll());
+			}
+			runPendingTasks();
+			runExpiredTimers();
+		}
+	}
+}
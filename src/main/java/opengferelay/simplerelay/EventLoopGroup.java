@@ -0,0 +1,30 @@
+package opengferelay.simplerelay;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A fixed set of event loops that channels are spread across round-robin
+class EventLoopGroup {
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	EventLoopGroup(String name, int threadCount) throws IOException {
+		if (threadCount <= 0) {
+			throw new IllegalArgumentException("Event loop thread count must be positive: "+threadCount);
+		}
+
+		loops = new EventLoop[threadCount];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(name+"-"+i);
+			loops[i].start();
+		}
+	}
+
+	EventLoop next() {
+		return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+	}
+
+	int size() {
+		return loops.length;
+	}
+}
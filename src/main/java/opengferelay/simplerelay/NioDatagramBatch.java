@@ -0,0 +1,71 @@
+package opengferelay.simplerelay;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+// The portable batch, one receive() or send() call on the channel per datagram
+class NioDatagramBatch extends DatagramBatch {
+	private final ByteBuffer[] buffers;
+	private final SocketAddress[] sources;
+	private final long[] receiveTimes;
+
+	NioDatagramBatch(int capacity) {
+		buffers = new ByteBuffer[capacity];
+		for (int i = 0; i < capacity; i++) {
+			buffers[i] = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+		}
+		sources = new SocketAddress[capacity];
+		receiveTimes = new long[capacity];
+	}
+
+	@Override
+	int receive(DatagramChannel channel) throws IOException {
+		int count = 0;
+		while (count < buffers.length) {
+			ByteBuffer buf = buffers[count];
+			buf.clear();
+
+			SocketAddress source = channel.receive(buf);
+			if (source == null) {
+				break;
+			}
+			buf.flip();
+			sources[count] = source;
+			receiveTimes[count++] = System.nanoTime();
+		}
+		return count;
+	}
+
+	@Override
+	int send(DatagramChannel channel, int from, int to, SocketAddress target) throws IOException {
+		for (int i = from; i < to; i++) {
+			// A full socket buffer won't have drained by the next datagram either
+			if (channel.send(buffers[i], target) == 0) {
+				return i - from;
+			}
+		}
+		return to - from;
+	}
+
+	@Override
+	int getCapacity() {
+		return buffers.length;
+	}
+
+	@Override
+	int getLength(int slot) {
+		return buffers[slot].limit();
+	}
+
+	@Override
+	SocketAddress getSource(int slot) {
+		return sources[slot];
+	}
+
+	@Override
+	long getReceiveTime(int slot) {
+		return receiveTimes[slot];
+	}
+}
@@ -0,0 +1,76 @@
+package opengferelay.simplerelay;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+// Applies the buffer sizes and traffic class from the relay options to
+// a socket. A value of 0 for any of them leaves the OS default alone.
+public class SocketTuning {
+	// Traffic class values carrying the usual DSCP code points (DSCP << 2)
+	public static final int TRAFFIC_CLASS_DEFAULT = 0;
+	public static final int TRAFFIC_CLASS_CS3 = 0x60;  // Signaling
+	public static final int TRAFFIC_CLASS_AF41 = 0x88; // Interactive video
+	public static final int TRAFFIC_CLASS_EF = 0xB8;   // Voice
+
+	private SocketTuning() {}
+
+	static void apply(NetworkChannel channel, int receiveBufferSize, int sendBufferSize, int trafficClass) throws IOException {
+		if (receiveBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+		if (sendBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+		}
+		if (trafficClass != TRAFFIC_CLASS_DEFAULT) {
+			try {
+				channel.setOption(StandardSocketOptions.IP_TOS, trafficClass);
+			} catch (IOException | UnsupportedOperationException e) {
+				// Marking is best effort and some platforms refuse it outright
+				System.err.println("Warning: Unable to set traffic class "+trafficClass+": "+e.getMessage());
+			}
+		}
+	}
+
+	// Prints what the kernel actually granted, which may be capped (e.g. by
+	// net.core.rmem_max on Linux) or scaled from what we asked for. Options
+	// the channel doesn't have, like SO_SNDBUF on a listener, are left out.
+	static void report(NetworkChannel channel, String description, int receiveBufferSize, int sendBufferSize, int trafficClass) {
+		StringBuilder line = new StringBuilder(description).append(':');
+		describe(line, channel, StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		describe(line, channel, StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+		describe(line, channel, StandardSocketOptions.IP_TOS, trafficClass);
+		System.out.println(line);
+
+		if (receiveBufferSize > 0 && getOption(channel, StandardSocketOptions.SO_RCVBUF) < receiveBufferSize) {
+			System.err.println("Warning: "+description+" receive buffer is smaller than requested; "+
+					"raise the OS limit (net.core.rmem_max on Linux) to avoid drops during bursts");
+		}
+		if (sendBufferSize > 0 && channel.supportedOptions().contains(StandardSocketOptions.SO_SNDBUF) &&
+				getOption(channel, StandardSocketOptions.SO_SNDBUF) < sendBufferSize) {
+			System.err.println("Warning: "+description+" send buffer is smaller than requested; "+
+					"raise the OS limit (net.core.wmem_max on Linux) to avoid drops during bursts");
+		}
+	}
+
+	private static void describe(StringBuilder line, NetworkChannel channel, SocketOption<Integer> option, int requested) {
+		if (!channel.supportedOptions().contains(option)) {
+			return;
+		}
+
+		int granted = getOption(channel, option);
+		line.append(' ').append(option.name()).append('=').append(granted >= 0 ? Integer.toString(granted) : "unknown");
+		if (requested > 0) {
+			line.append(" (requested ").append(requested).append(')');
+		}
+	}
+
+	private static int getOption(NetworkChannel channel, SocketOption<Integer> option) {
+		try {
+			return channel.getOption(option);
+		} catch (IOException | UnsupportedOperationException e) {
+			return -1;
+		}
+	}
+}
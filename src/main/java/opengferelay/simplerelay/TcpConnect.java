@@ -0,0 +1,144 @@
+package opengferelay.simplerelay;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import opengferelay.metrics.TcpRelayMetrics;
+
+// Opens the remote side of a relayed connection from an event loop, so a
+// slow or unreachable remote host never holds up a thread. Each attempt is
+// a non-blocking connect that's finished when the loop sees OP_CONNECT, or
+// abandoned once the connect timeout passes. Failed attempts are retried
+// after a delay that doubles every time.
+class TcpConnect implements EventLoop.Handler {
+	interface Callback {
+		// Called on the loop thread with a connected non-blocking channel that
+		// is no longer registered with the loop
+		void connected(SocketChannel channel);
+
+		// Called on the loop thread once the last attempt has failed
+		void failed(IOException e);
+	}
+
+	private final EventLoop loop;
+	private final SocketAddress remoteAddress;
+	private final TcpRelayOptions options;
+	private final TcpRelayMetrics metrics;
+	private final Callback callback;
+
+	// The attempt in progress, if any, and its timeout. Only touched by the loop thread.
+	private SocketChannel channel;
+	private EventLoop.TimerTask connectTimer;
+	private int attempts;
+
+	TcpConnect(EventLoop loop, SocketAddress remoteAddress, TcpRelayOptions options, TcpRelayMetrics metrics,
+			Callback callback) {
+		this.loop = loop;
+		this.remoteAddress = remoteAddress;
+		this.options = options;
+		this.metrics = metrics;
+		this.callback = callback;
+	}
+
+	void start() {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				attempt();
+			}
+		});
+	}
+
+	private void attempt() {
+		attempts++;
+
+		final SocketChannel attemptChannel;
+		try {
+			attemptChannel = SocketChannel.open();
+			channel = attemptChannel;
+			attemptChannel.configureBlocking(false);
+			SocketTuning.apply(attemptChannel, options.getReceiveBufferSize(),
+					options.getSendBufferSize(), options.getTrafficClass());
+
+			if (attemptChannel.connect(remoteAddress)) {
+				// Loopback connections can complete straight away
+				channel = null;
+				callback.connected(attemptChannel);
+				return;
+			}
+			attemptChannel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+		} catch (IOException e) {
+			attemptFailed(e);
+			return;
+		}
+
+		connectTimer = loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (channel == attemptChannel) {
+					attemptFailed(new SocketTimeoutException("Connect to "+remoteAddress+" timed out after "+
+							options.getConnectTimeoutMs()+" ms"));
+				}
+			}
+		}, options.getConnectTimeoutMs());
+	}
+
+	@Override
+	public void handleEvent(SelectionKey key) {
+		try {
+			if (!channel.finishConnect()) {
+				return;
+			}
+		} catch (IOException e) {
+			attemptFailed(e);
+			return;
+		}
+
+		final SocketChannel connected = channel;
+		channel = null;
+		cancelConnectTimer();
+		loop.cancel(key, new Runnable() {
+			@Override
+			public void run() {
+				callback.connected(connected);
+			}
+		});
+	}
+
+	private void cancelConnectTimer() {
+		if (connectTimer != null) {
+			connectTimer.cancel();
+			connectTimer = null;
+		}
+	}
+
+	private void attemptFailed(IOException e) {
+		cancelConnectTimer();
+
+		// Closing also drops the channel's registration
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e1) {}
+			channel = null;
+		}
+
+		if (attempts >= options.getConnectAttempts()) {
+			callback.failed(e);
+			return;
+		}
+
+		long delayMs = options.getConnectRetryDelayMs() << Math.min(attempts - 1, 16);
+		System.err.println("Warning: Connect to "+remoteAddress+" failed ("+e.getMessage()+"), retrying in "+delayMs+" ms");
+		metrics.connectRetried();
+		loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				attempt();
+			}
+		}, delayMs);
+	}
+}
@@ -3,103 +3,325 @@ package opengferelay.simplerelay;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import opengferelay.ConnectionExecutors;
+import opengferelay.metrics.Direction;
+import opengferelay.metrics.MetricsRegistry;
+import opengferelay.metrics.TcpRelayMetrics;
 
 public class TcpRelay {
-	private ServerSocket serverSock;
+	// In stream mode, a blocking write that takes longer than this was waiting
+	// for the receiver to make room rather than just copying into the socket buffer
+	private static final long STREAM_STALL_THRESHOLD_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	// Connects to the remote host and spliced connections share a small number of
+	// selector threads. This can be overridden with -Dopengferelay.tcp.threads=N
+	// or setEventLoopThreads().
+	private static int eventLoopThreads = Integer.getInteger("opengferelay.tcp.threads",
+			Math.min(2, Runtime.getRuntime().availableProcessors()));
+	private static EventLoopGroup eventLoops;
+	private static ExecutorService defaultExecutor;
+
+	private ServerSocketChannel serverChannel;
 	private SocketAddress remoteHost;
-	
+	private TcpRelayOptions options;
+	private ExecutorService executor;
+	private EventLoop dedicatedLoop;
+	private TcpRelayMetrics metrics;
+	private Semaphore connectPermits;
+	private final AtomicBoolean tuningReported = new AtomicBoolean();
+
 	private TcpRelay() {}
-	
+
+	public static synchronized void setEventLoopThreads(int threads) {
+		if (eventLoops != null) {
+			throw new IllegalStateException("TCP event loops are already running");
+		}
+		eventLoopThreads = threads;
+	}
+
+	private static synchronized EventLoopGroup getEventLoops() throws IOException {
+		if (eventLoops == null) {
+			eventLoops = new EventLoopGroup("TCP relay", eventLoopThreads);
+		}
+		return eventLoops;
+	}
+
+	private static synchronized ExecutorService getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = ConnectionExecutors.newConnectionExecutor("TCP relay");
+		}
+		return defaultExecutor;
+	}
+
 	public static TcpRelay startRelay(int localPort, SocketAddress remoteHost) throws IOException {
+		return startRelay(localPort, remoteHost, new TcpRelayOptions());
+	}
+
+	public static TcpRelay startRelay(int localPort, SocketAddress remoteHost, TcpRelayOptions options) throws IOException {
 		TcpRelay relay = new TcpRelay();
-		
-		relay.serverSock = new ServerSocket(localPort);
+
+		relay.serverChannel = ServerSocketChannel.open();
+		try {
+			// Accepted sockets inherit the receive buffer, and it has to be set
+			// before listening for the window scale to be negotiated from it
+			if (options.getReceiveBufferSize() > 0) {
+				relay.serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, options.getReceiveBufferSize());
+			}
+			relay.serverChannel.bind(new InetSocketAddress(options.getBindAddress(), localPort));
+		} catch (IOException e) {
+			relay.serverChannel.close();
+			throw e;
+		}
+		SocketTuning.report(relay.serverChannel, "TCP port "+localPort, options.getReceiveBufferSize(),
+				options.getSendBufferSize(), options.getTrafficClass());
 		relay.remoteHost = remoteHost;
-		
+		relay.options = options;
+		relay.executor = options.getExecutor() != null ? options.getExecutor() : getDefaultExecutor();
+		if (options.isDedicatedLoop() && options.getMode() == TcpRelayOptions.Mode.SPLICE) {
+			relay.dedicatedLoop = EventLoop.startDedicated("TCP splice "+localPort, options.getBusyPollMicros());
+		}
+		relay.metrics = new TcpRelayMetrics(localPort);
+		MetricsRegistry.register(relay.metrics);
+		relay.connectPermits = new Semaphore(options.getMaxPendingConnects());
+
 		relay.startAcceptThread();
-		
+
 		return relay;
 	}
-	
-	private void startRelayThread(final Socket sin, final Socket sout) {
-		new Thread() {
+
+	// Send buffers and marking are per connection, so the first one relayed
+	// shows what the kernel grants beyond the listening socket
+	private void reportConnectionTuning(SocketChannel clientSock, SocketChannel outboundSock) {
+		if (tuningReported.compareAndSet(false, true)) {
+			int localPort = serverChannel.socket().getLocalPort();
+			SocketTuning.report(clientSock, "TCP port "+localPort+" client connection",
+					options.getReceiveBufferSize(), options.getSendBufferSize(), options.getTrafficClass());
+			SocketTuning.report(outboundSock, "TCP port "+localPort+" remote connection",
+					options.getReceiveBufferSize(), options.getSendBufferSize(), options.getTrafficClass());
+		}
+	}
+
+	public TcpRelayMetrics getMetrics() {
+		return metrics;
+	}
+
+	// openDirections and halfCloseTime are shared by both directions of a connection.
+	// When one side shuts down its output, that's passed on and the other direction
+	// carries on; the connection is closed once both are done, as soon as either
+	// fails, or once the other direction has sat idle for the half-close timeout.
+	private void startRelayThread(final Socket sin, final Socket sout, final Direction direction,
+			final AtomicInteger openDirections, final AtomicLong halfCloseTime) {
+		executor.execute(new Runnable() {
 			@Override
 			public void run() {
 				byte[] buf = new byte[1500];
-				
+
 				InputStream in;
 				OutputStream out;
-				
+
 				try {
 					in = sin.getInputStream();
 					out = sout.getOutputStream();
-					
+
+					// Wake up now and then to see whether the other side has been
+					// waiting on this one for too long
+					long halfCloseTimeoutMs = options.getHalfCloseTimeoutMs();
+					sin.setSoTimeout((int) halfCloseTimeoutMs);
+					long lastReadTime = System.nanoTime();
+
 					for (;;) {
-						int bytesRead = in.read(buf);
-						if (bytesRead <= 0) {
+						int bytesRead;
+						try {
+							bytesRead = in.read(buf);
+						} catch (SocketTimeoutException e) {
+							long halfClosedAt = halfCloseTime.get();
+							if (halfClosedAt == 0) {
+								continue;
+							}
+
+							// Idle time only counts from the half-close on
+							long idleSince = halfClosedAt - lastReadTime > 0 ? halfClosedAt : lastReadTime;
+							long remainingMs = halfCloseTimeoutMs -
+									TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - idleSince);
+							if (remainingMs > 0) {
+								sin.setSoTimeout((int) remainingMs);
+								continue;
+							}
+
+							if (openDirections.getAndSet(0) > 0) {
+								Socket client = direction == Direction.CLIENT_TO_REMOTE ? sin : sout;
+								System.out.println("Closing connection from "+client.getRemoteSocketAddress()+
+										", idle for "+halfCloseTimeoutMs+" ms after a half-close");
+								closeConnection(sin, sout);
+							}
+							return;
+						}
+						if (bytesRead < 0) {
 							break;
 						}
+						lastReadTime = System.nanoTime();
 
+						// The write blocks while the receiver isn't keeping up, which
+						// in turn stops us reading from the sender
+						long writeStart = lastReadTime;
 						out.write(buf, 0, bytesRead);
+						long writeNanos = System.nanoTime() - writeStart;
+						if (writeNanos >= STREAM_STALL_THRESHOLD_NS) {
+							metrics.recordStall(direction, writeNanos);
+						}
+						metrics.recordForwarded(direction, bytesRead);
 					}
+
+					metrics.recordHalfClose(direction);
+					sout.shutdownOutput();
+					halfCloseTime.compareAndSet(0, System.nanoTime());
 				} catch (IOException e) {
-					e.printStackTrace();
-				} finally {
-					// Close up both sides
-					try {
-						sin.close();
-					} catch (IOException e1) {}
-					try {
-						sout.close();
-					} catch (IOException e1) {}
+					// Once the other direction has closed up, failing here is expected
+					if (openDirections.getAndSet(0) > 0) {
+						e.printStackTrace();
+						closeConnection(sin, sout);
+					}
+					return;
+				}
+
+				if (openDirections.decrementAndGet() == 0) {
+					closeConnection(sin, sout);
 				}
 			}
-		}.start();
+		});
+	}
+
+	private void closeConnection(Socket a, Socket b) {
+		try {
+			a.close();
+		} catch (IOException e1) {}
+		try {
+			b.close();
+		} catch (IOException e1) {}
+		metrics.connectionClosed();
+	}
+
+	// Runs on the loop thread once the remote side is connected
+	private void startRelay(SocketChannel clientSock, SocketChannel outboundSock, EventLoop loop) {
+		boolean opened = false;
+		try {
+			// The client socket's receive buffer was inherited from the listener
+			SocketTuning.apply(clientSock, 0, options.getSendBufferSize(), options.getTrafficClass());
+			outboundSock.socket().setTcpNoDelay(true);
+			reportConnectionTuning(clientSock, outboundSock);
+
+			metrics.connectionOpened();
+			opened = true;
+			if (options.getMode() == TcpRelayOptions.Mode.SPLICE) {
+				new TcpSplice(clientSock, outboundSock, metrics, options.getHalfCloseTimeoutMs()).start(loop);
+			}
+			else {
+				// The copy threads use blocking streams
+				outboundSock.configureBlocking(true);
+				AtomicInteger openDirections = new AtomicInteger(2);
+				AtomicLong halfCloseTime = new AtomicLong();
+				startRelayThread(clientSock.socket(), outboundSock.socket(), Direction.CLIENT_TO_REMOTE,
+						openDirections, halfCloseTime);
+				startRelayThread(outboundSock.socket(), clientSock.socket(), Direction.REMOTE_TO_CLIENT,
+						openDirections, halfCloseTime);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (opened) {
+				metrics.connectionClosed();
+			}
+
+			// Drop this inbound connection
+			try {
+				outboundSock.close();
+			} catch (IOException e1) {}
+			try {
+				clientSock.close();
+			} catch (IOException e1) {}
+			return;
+		}
+
+		System.out.println("Relay started for "+clientSock.socket().getRemoteSocketAddress()+" -> "+outboundSock.socket().getRemoteSocketAddress());
 	}
-	
+
+	private void connectUpstream(final SocketChannel clientSock) {
+		final EventLoop loop;
+		try {
+			loop = dedicatedLoop != null ? dedicatedLoop : getEventLoops().next();
+		} catch (IOException e) {
+			e.printStackTrace();
+			metrics.connectFailed();
+			connectPermits.release();
+			try {
+				clientSock.close();
+			} catch (IOException e1) {}
+			return;
+		}
+
+		System.out.println("Waiting for outbound connection to: "+remoteHost);
+		metrics.connectStarted();
+		new TcpConnect(loop, remoteHost, options, metrics, new TcpConnect.Callback() {
+			@Override
+			public void connected(SocketChannel outboundSock) {
+				metrics.connectFinished();
+				connectPermits.release();
+				startRelay(clientSock, outboundSock, loop);
+			}
+
+			@Override
+			public void failed(IOException e) {
+				System.err.println("Unable to connect to "+remoteHost+" for "+
+						clientSock.socket().getRemoteSocketAddress()+": "+e.getMessage());
+				metrics.connectFinished();
+				metrics.connectFailed();
+				connectPermits.release();
+
+				// Drop this inbound connection
+				try {
+					clientSock.close();
+				} catch (IOException e1) {}
+			}
+		}).start();
+	}
+
 	private void startAcceptThread() {
 		new Thread() {
 			@Override
 			public void run() {
 				for (;;) {
-					Socket clientSock;
-					
-					System.out.println("Waiting for TCP connections on port: "+serverSock.getLocalPort());
+					SocketChannel clientSock;
+
+					// While too many connects to the remote host are in progress,
+					// further clients are left waiting in the listen backlog
+					connectPermits.acquireUninterruptibly();
+
+					System.out.println("Waiting for TCP connections on port: "+serverChannel.socket().getLocalPort());
 					try {
-						clientSock = serverSock.accept();
-						clientSock.setTcpNoDelay(true);
+						clientSock = serverChannel.accept();
+						clientSock.socket().setTcpNoDelay(true);
+						metrics.connectionAccepted();
 					} catch (IOException e) {
 						e.printStackTrace();
 						break;
 					}
-					
-					System.out.println("Waiting for outbound connection to: "+remoteHost);
-					Socket outboundSock = new Socket();
-					try {
-						outboundSock.connect(remoteHost, 5000);
-						outboundSock.setTcpNoDelay(true);
-					} catch (IOException e) {
-						e.printStackTrace();
-						
-						// Drop this inbound connection
-						try {
-							outboundSock.close();
-						} catch (IOException e1) {}
-						try {
-							clientSock.close();
-						} catch (IOException e1) {}
-						
-						// Keep waiting for other inbound connections
-						continue;
-					}
-										
-					startRelayThread(clientSock, outboundSock);
-					startRelayThread(outboundSock, clientSock);
-					
-					System.out.println("Relay started for "+clientSock.getRemoteSocketAddress()+" -> "+outboundSock.getRemoteSocketAddress());
+
+					// Connecting to the remote host happens on an event loop, so this
+					// thread only ever accepts
+					connectUpstream(clientSock);
 				}
 			}
 		}.start();
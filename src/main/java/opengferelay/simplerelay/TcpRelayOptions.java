@@ -0,0 +1,199 @@
+package opengferelay.simplerelay;
+
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+
+public class TcpRelayOptions {
+	public enum Mode {
+		// Two blocking copy threads per connection
+		STREAM,
+
+		// Both directions of every connection are moved between
+		// non-blocking channels by the shared TCP event loops
+		SPLICE
+	}
+
+	public static final long DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+	public static final int DEFAULT_CONNECT_ATTEMPTS = 3;
+	public static final long DEFAULT_CONNECT_RETRY_DELAY_MS = 250;
+	public static final int DEFAULT_MAX_PENDING_CONNECTS = 64;
+	public static final long DEFAULT_HALF_CLOSE_TIMEOUT_MS = 60000;
+
+	private Mode mode = Mode.SPLICE;
+	private ExecutorService executor;
+	private InetAddress bindAddress;
+	private int receiveBufferSize;
+	private int sendBufferSize;
+	private int trafficClass = SocketTuning.TRAFFIC_CLASS_DEFAULT;
+	private boolean dedicatedLoop;
+	private long busyPollMicros;
+	private long connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+	private int connectAttempts = DEFAULT_CONNECT_ATTEMPTS;
+	private long connectRetryDelayMs = DEFAULT_CONNECT_RETRY_DELAY_MS;
+	private int maxPendingConnects = DEFAULT_MAX_PENDING_CONNECTS;
+	private long halfCloseTimeoutMs = DEFAULT_HALF_CLOSE_TIMEOUT_MS;
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public TcpRelayOptions setMode(Mode mode) {
+		this.mode = mode;
+		return this;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	// Runs the copy loops in stream mode. If this isn't set, a shared
+	// executor using virtual threads (when available) is used.
+	public TcpRelayOptions setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	public InetAddress getBindAddress() {
+		return bindAddress;
+	}
+
+	// Local address to listen on; null listens on all interfaces
+	public TcpRelayOptions setBindAddress(InetAddress bindAddress) {
+		this.bindAddress = bindAddress;
+		return this;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	// SO_RCVBUF for the sockets of this relay; 0 leaves the OS default
+	public TcpRelayOptions setReceiveBufferSize(int receiveBufferSize) {
+		if (receiveBufferSize < 0) {
+			throw new IllegalArgumentException("Receive buffer size must not be negative: "+receiveBufferSize);
+		}
+		this.receiveBufferSize = receiveBufferSize;
+		return this;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	// SO_SNDBUF for the sockets of this relay; 0 leaves the OS default
+	public TcpRelayOptions setSendBufferSize(int sendBufferSize) {
+		if (sendBufferSize < 0) {
+			throw new IllegalArgumentException("Send buffer size must not be negative: "+sendBufferSize);
+		}
+		this.sendBufferSize = sendBufferSize;
+		return this;
+	}
+
+	public int getTrafficClass() {
+		return trafficClass;
+	}
+
+	// IP_TOS byte (DSCP << 2) for traffic sent by this relay, see SocketTuning
+	public TcpRelayOptions setTrafficClass(int trafficClass) {
+		if (trafficClass < 0 || trafficClass > 255) {
+			throw new IllegalArgumentException("Traffic class must be between 0 and 255: "+trafficClass);
+		}
+		this.trafficClass = trafficClass;
+		return this;
+	}
+
+	public boolean isDedicatedLoop() {
+		return dedicatedLoop;
+	}
+
+	// Gives this relay a high-priority event loop of its own instead of sharing
+	// one with other relays, so its spliced connections never wait behind a burst
+	// on another port. Only applies in splice mode, since stream mode copies on
+	// executor threads.
+	public TcpRelayOptions setDedicatedLoop(boolean dedicatedLoop) {
+		this.dedicatedLoop = dedicatedLoop;
+		return this;
+	}
+
+	public long getBusyPollMicros() {
+		return busyPollMicros;
+	}
+
+	// With a dedicated loop, keep polling for this long after each event before
+	// blocking again. This trades a busy core for lower wakeup latency; 0 disables it.
+	public TcpRelayOptions setBusyPollMicros(long busyPollMicros) {
+		if (busyPollMicros < 0) {
+			throw new IllegalArgumentException("Busy-poll time must not be negative: "+busyPollMicros);
+		}
+		this.busyPollMicros = busyPollMicros;
+		return this;
+	}
+
+	public long getConnectTimeoutMs() {
+		return connectTimeoutMs;
+	}
+
+	// How long each attempt to connect to the remote host may take
+	public TcpRelayOptions setConnectTimeoutMs(long connectTimeoutMs) {
+		if (connectTimeoutMs <= 0) {
+			throw new IllegalArgumentException("Connect timeout must be positive: "+connectTimeoutMs);
+		}
+		this.connectTimeoutMs = connectTimeoutMs;
+		return this;
+	}
+
+	public int getConnectAttempts() {
+		return connectAttempts;
+	}
+
+	// Number of times to try connecting to the remote host before the client
+	// connection is dropped
+	public TcpRelayOptions setConnectAttempts(int connectAttempts) {
+		if (connectAttempts <= 0) {
+			throw new IllegalArgumentException("Connect attempts must be positive: "+connectAttempts);
+		}
+		this.connectAttempts = connectAttempts;
+		return this;
+	}
+
+	public long getConnectRetryDelayMs() {
+		return connectRetryDelayMs;
+	}
+
+	// Delay before the first retry of a failed connect, doubled for each one after
+	public TcpRelayOptions setConnectRetryDelayMs(long connectRetryDelayMs) {
+		if (connectRetryDelayMs < 0) {
+			throw new IllegalArgumentException("Connect retry delay must not be negative: "+connectRetryDelayMs);
+		}
+		this.connectRetryDelayMs = connectRetryDelayMs;
+		return this;
+	}
+
+	public int getMaxPendingConnects() {
+		return maxPendingConnects;
+	}
+
+	// The relay stops accepting while this many connects to the remote host are
+	// in progress, leaving further clients in the listen backlog
+	public TcpRelayOptions setMaxPendingConnects(int maxPendingConnects) {
+		if (maxPendingConnects <= 0) {
+			throw new IllegalArgumentException("Max pending connects must be positive: "+maxPendingConnects);
+		}
+		this.maxPendingConnects = maxPendingConnects;
+		return this;
+	}
+
+	public long getHalfCloseTimeoutMs() {
+		return halfCloseTimeoutMs;
+	}
+
+	// Once one side of a connection has shut down its output, both are closed if
+	// the other direction goes this long without moving any data
+	public TcpRelayOptions setHalfCloseTimeoutMs(long halfCloseTimeoutMs) {
+		if (halfCloseTimeoutMs <= 0 || halfCloseTimeoutMs > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Half-close timeout must be between 1 and "+Integer.MAX_VALUE+": "+halfCloseTimeoutMs);
+		}
+		this.halfCloseTimeoutMs = halfCloseTimeoutMs;
+		return this;
+	}
+}
@@ -0,0 +1,264 @@
+package opengferelay.simplerelay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import opengferelay.metrics.Direction;
+import opengferelay.metrics.TcpRelayMetrics;
+
+// Moves data in both directions between a pair of non-blocking sockets
+// from an event loop. Each direction is a Flow of its own with a direct
+// buffer sized to the socket buffers. A flow stops reading while its buffer
+// is full of data the other side hasn't accepted yet, so a slow receiver
+// pushes back on the sender instead of growing the buffer. When one side
+// shuts down its output, that's passed on once everything it sent has been
+// written, and the other direction keeps running until it finishes too, or
+// until it has sat idle for the half-close timeout, which closes both.
+class TcpSplice implements EventLoop.Handler {
+	private static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+	private final SocketChannel client;
+	private final SocketChannel server;
+	private final TcpRelayMetrics metrics;
+	private final long halfCloseTimeoutMs;
+	private boolean closed;
+
+	// Only touched by the loop thread
+	private EventLoop loop;
+	private EventLoop.TimerTask halfCloseTimer;
+
+	// System.nanoTime() of the last read or write that moved any data
+	private long lastTransferTime = System.nanoTime();
+
+	private final Flow clientToServer;
+	private final Flow serverToClient;
+
+	private SelectionKey clientKey;
+	private SelectionKey serverKey;
+
+	private class Flow {
+		final SocketChannel source;
+		final SocketChannel sink;
+		final Direction direction;
+
+		// Kept in fill mode between events
+		final ByteBuffer buffer;
+
+		// The source has shut down its output
+		boolean sourceDone;
+
+		// Everything has been passed on and the sink's output shut down
+		boolean finished;
+
+		// System.nanoTime() when the buffer filled up, or 0 while there's room
+		long stallStart;
+
+		Flow(SocketChannel source, SocketChannel sink, Direction direction) throws IOException {
+			this.source = source;
+			this.sink = sink;
+			this.direction = direction;
+
+			int size = Math.max(source.socket().getReceiveBufferSize(), sink.socket().getSendBufferSize());
+			buffer = ByteBuffer.allocateDirect(Math.min(size, MAX_BUFFER_SIZE));
+		}
+
+		void read() throws IOException {
+			int bytesRead = source.read(buffer);
+			if (bytesRead < 0) {
+				sourceDone = true;
+				metrics.recordHalfClose(direction);
+				lastTransferTime = System.nanoTime();
+				startHalfCloseTimer();
+			}
+			else if (bytesRead > 0) {
+				metrics.addPendingBytes(direction, bytesRead);
+				lastTransferTime = System.nanoTime();
+			}
+
+			flush();
+		}
+
+		void flush() throws IOException {
+			if (buffer.position() != 0) {
+				buffer.flip();
+				int bytesWritten = sink.write(buffer);
+				buffer.compact();
+
+				metrics.addPendingBytes(direction, -bytesWritten);
+				metrics.recordForwarded(direction, bytesWritten);
+				if (bytesWritten > 0) {
+					lastTransferTime = System.nanoTime();
+				}
+			}
+
+			if (sourceDone && buffer.position() == 0 && !finished) {
+				sink.shutdownOutput();
+				finished = true;
+			}
+		}
+
+		// Only read when there's room to buffer what we read
+		boolean wantsRead() {
+			return !sourceDone && buffer.hasRemaining();
+		}
+
+		// Wait for writability only while we have data the sink didn't take
+		boolean wantsWrite() {
+			return buffer.position() != 0;
+		}
+
+		void updateStall(long now) {
+			boolean stalled = !sourceDone && !buffer.hasRemaining();
+			if (stalled && stallStart == 0) {
+				stallStart = now;
+			}
+			else if (!stalled && stallStart != 0) {
+				metrics.recordStall(direction, now - stallStart);
+				stallStart = 0;
+			}
+		}
+	}
+
+	TcpSplice(SocketChannel client, SocketChannel server, TcpRelayMetrics metrics, long halfCloseTimeoutMs)
+			throws IOException {
+		this.client = client;
+		this.server = server;
+		this.metrics = metrics;
+		this.halfCloseTimeoutMs = halfCloseTimeoutMs;
+
+		clientToServer = new Flow(client, server, Direction.CLIENT_TO_REMOTE);
+		serverToClient = new Flow(server, client, Direction.REMOTE_TO_CLIENT);
+	}
+
+	void start(final EventLoop loop) throws IOException {
+		this.loop = loop;
+		client.configureBlocking(false);
+		server.configureBlocking(false);
+
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Selector selector = loop.getSelector();
+					clientKey = client.register(selector, SelectionKey.OP_READ, TcpSplice.this);
+					serverKey = server.register(selector, SelectionKey.OP_READ, TcpSplice.this);
+				} catch (ClosedChannelException e) {
+					e.printStackTrace();
+					close();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void handleEvent(SelectionKey key) {
+		// The flow this channel is the source of, and the one it's the sink of
+		Flow inbound = key.channel() == client ? clientToServer : serverToClient;
+		Flow outbound = inbound == clientToServer ? serverToClient : clientToServer;
+
+		try {
+			if (key.isWritable()) {
+				outbound.flush();
+			}
+			if (key.isReadable()) {
+				inbound.read();
+			}
+		} catch (IOException e) {
+			// A reset or failed write ends both directions
+			e.printStackTrace();
+			close();
+			return;
+		}
+
+		if (clientToServer.finished && serverToClient.finished) {
+			close();
+		}
+		else {
+			updateInterestOps();
+		}
+	}
+
+	// Started by the first side to shut down, so a peer that never finishes
+	// its half can't hold the connection open forever. Data still moving in the
+	// other direction keeps the connection open.
+	private void startHalfCloseTimer() {
+		if (halfCloseTimer == null) {
+			scheduleHalfCloseCheck(halfCloseTimeoutMs);
+		}
+	}
+
+	private void scheduleHalfCloseCheck(long delayMs) {
+		halfCloseTimer = loop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (closed) {
+					return;
+				}
+
+				// Check again once the timeout has passed since the last transfer
+				long idleMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastTransferTime);
+				if (idleMs < halfCloseTimeoutMs) {
+					scheduleHalfCloseCheck(halfCloseTimeoutMs - idleMs);
+					return;
+				}
+
+				System.out.println("Closing connection from "+client.socket().getRemoteSocketAddress()+
+						", idle for "+halfCloseTimeoutMs+" ms after a half-close");
+				close();
+			}
+		}, delayMs);
+	}
+
+	private void updateInterestOps() {
+		clientKey.interestOps(getInterestOps(clientToServer, serverToClient));
+		serverKey.interestOps(getInterestOps(serverToClient, clientToServer));
+
+		long now = System.nanoTime();
+		clientToServer.updateStall(now);
+		serverToClient.updateStall(now);
+	}
+
+	private static int getInterestOps(Flow inbound, Flow outbound) {
+		int ops = 0;
+		if (inbound.wantsRead()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (outbound.wantsWrite()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		return ops;
+	}
+
+	private void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		if (halfCloseTimer != null) {
+			halfCloseTimer.cancel();
+		}
+
+		// Anything still buffered is lost
+		long now = System.nanoTime();
+		for (Flow flow : new Flow[] { clientToServer, serverToClient }) {
+			metrics.addPendingBytes(flow.direction, -flow.buffer.position());
+			if (flow.stallStart != 0) {
+				metrics.recordStall(flow.direction, now - flow.stallStart);
+			}
+		}
+		metrics.connectionClosed();
+
+		try {
+			client.close();
+		} catch (IOException e1) {}
+		try {
+			server.close();
+		} catch (IOException e1) {}
+	}
+}
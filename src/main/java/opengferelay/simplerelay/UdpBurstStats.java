@@ -0,0 +1,71 @@
+package opengferelay.simplerelay;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Burst size statistics for a relay running in burst mode. Updated by the
+// relay's event loop thread and safe to read from any other thread.
+public class UdpBurstStats {
+	// Power-of-two buckets: 1, 2-3, 4-7, ... with the last bucket catching everything larger
+	public static final int BUCKET_COUNT = 8;
+
+	private final AtomicLong bursts = new AtomicLong();
+	private final AtomicLong datagrams = new AtomicLong();
+	private final AtomicLong maxBurstSize = new AtomicLong();
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+	void recordBurst(int size) {
+		if (size <= 0) {
+			return;
+		}
+
+		bursts.incrementAndGet();
+		datagrams.addAndGet(size);
+		buckets.incrementAndGet(Math.min(31 - Integer.numberOfLeadingZeros(size), BUCKET_COUNT - 1));
+
+		long max = maxBurstSize.get();
+		while (size > max && !maxBurstSize.compareAndSet(max, size)) {
+			max = maxBurstSize.get();
+		}
+	}
+
+	public long getBurstCount() {
+		return bursts.get();
+	}
+
+	public long getDatagramCount() {
+		return datagrams.get();
+	}
+
+	public long getMaxBurstSize() {
+		return maxBurstSize.get();
+	}
+
+	// Number of bursts whose size fell in [2^bucket, 2^(bucket+1))
+	public long getBucketCount(int bucket) {
+		return buckets.get(bucket);
+	}
+
+	@Override
+	public String toString() {
+		long burstCount = getBurstCount();
+		StringBuilder str = new StringBuilder();
+		str.append("bursts=").append(burstCount);
+		str.append(" datagrams=").append(getDatagramCount());
+		str.append(" avg=").append(burstCount != 0 ? getDatagramCount() / burstCount : 0);
+		str.append(" max=").append(getMaxBurstSize());
+		str.append(" sizes=[");
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			if (i != 0) {
+				str.append(' ');
+			}
+			str.append(1 << i);
+			if (i == BUCKET_COUNT - 1) {
+				str.append('+');
+			}
+			str.append(':').append(getBucketCount(i));
+		}
+		str.append(']');
+		return str.toString();
+	}
+}
@@ -1,68 +1,409 @@
 package opengferelay.simplerelay;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import opengferelay.metrics.Direction;
+import opengferelay.metrics.MetricsRegistry;
+import opengferelay.metrics.UdpRelayMetrics;
+
+public class UdpRelay implements EventLoop.Handler {
+	// All UDP relays share a small number of selector threads. This can be
+	// overridden with -Dopengferelay.udp.threads=N or setEventLoopThreads().
+	private static int eventLoopThreads = Integer.getInteger("opengferelay.udp.threads",
+			Math.min(2, Runtime.getRuntime().availableProcessors()));
+	private static EventLoopGroup eventLoops;
+
+	private DatagramChannel channel;
+	private InetSocketAddress remoteAddress;
+	private UdpRelayOptions options;
+	private EventLoop loop;
+
+	// Active sessions by client address. Only touched by the event loop thread.
+	private final HashMap<SocketAddress, UdpSession> sessions = new HashMap<>();
+
+	// DatagramChannel.receive() returns the same address object for consecutive
+	// datagrams from one sender, so while a single client is streaming its
+	// datagrams are matched by identity without hashing into the session map
+	private SocketAddress lastClientAddress;
+	private UdpSession lastClientSession;
+
+	// Preallocated slots that datagrams are drained into before they are
+	// forwarded. Without burst mode, the batch only holds a single datagram.
+	private DatagramBatch batch;
+	private UdpSession[] burstSessions;
+	private UdpBurstStats burstStats;
+	private UdpRelayMetrics metrics;
 
-public class UdpRelay {
-	private DatagramSocket dgramSocket;
-	private SocketAddress remoteAddress;
-	
 	private UdpRelay() {}
-	
+
+	public static synchronized void setEventLoopThreads(int threads) {
+		if (eventLoops != null) {
+			throw new IllegalStateException("UDP event loops are already running");
+		}
+		eventLoopThreads = threads;
+	}
+
+	private static synchronized EventLoopGroup getEventLoops() throws IOException {
+		if (eventLoops == null) {
+			eventLoops = new EventLoopGroup("UDP relay", eventLoopThreads);
+		}
+		return eventLoops;
+	}
+
 	public static UdpRelay startRelay(int localPort, SocketAddress remoteAddress) throws IOException {
-		UdpRelay relay = new UdpRelay();
-		
-		relay.dgramSocket = new DatagramSocket(localPort);
-		relay.remoteAddress = remoteAddress;
-		
-		relay.startRelayThread();
-		
-		return relay;
-	}
-	
-	private void startRelayThread() {
-		new Thread() {
+		return startRelay(localPort, remoteAddress, new UdpRelayOptions());
+	}
+
+	// With more than one shard, each shard is a UdpRelay of its own with its
+	// own socket on the port, loop and sessions. The first one is returned,
+	// and its metrics and burst stats cover all of them.
+	public static UdpRelay startRelay(int localPort, SocketAddress remoteAddress, UdpRelayOptions options) throws IOException {
+		if (!(remoteAddress instanceof InetSocketAddress)) {
+			throw new IllegalArgumentException("Unsupported remote address: "+remoteAddress);
+		}
+
+		int shardCount = options.getShards();
+		if (shardCount > 1 && !isReusePortSupported()) {
+			System.err.println("Warning: SO_REUSEPORT is not supported here, so UDP port "+localPort+" runs a single shard");
+			shardCount = 1;
+		}
+
+		// Bind every shard's socket before starting any of them, so a failure leaves nothing running
+		DatagramChannel[] channels = new DatagramChannel[shardCount];
+		try {
+			for (int i = 0; i < shardCount; i++) {
+				channels[i] = openChannel(localPort, options, shardCount > 1);
+			}
+		} catch (IOException e) {
+			for (DatagramChannel channel : channels) {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+			throw e;
+		}
+		SocketTuning.report(channels[0], "UDP port "+localPort, options.getReceiveBufferSize(),
+				options.getSendBufferSize(), options.getTrafficClass());
+
+		UdpRelayMetrics metrics = new UdpRelayMetrics(localPort);
+		MetricsRegistry.register(metrics);
+		UdpBurstStats burstStats = options.isBurstMode() ? new UdpBurstStats() : null;
+		int batchSize = options.isBurstMode() ? options.getBurstSize() : 1;
+		boolean nativeBatching = options.isNativeBatching();
+
+		UdpRelay first = null;
+		for (int i = 0; i < shardCount; i++) {
+			UdpRelay relay = new UdpRelay();
+			relay.channel = channels[i];
+			relay.remoteAddress = (InetSocketAddress) remoteAddress;
+			relay.options = options;
+			relay.metrics = metrics;
+			relay.burstStats = burstStats;
+
+			if (nativeBatching) {
+				try {
+					relay.batch = DatagramBatch.createNative(batchSize);
+				} catch (UnsupportedOperationException e) {
+					System.err.println("Warning: "+e.getMessage()+", so UDP port "+localPort+" uses the portable engine");
+					nativeBatching = false;
+				}
+			}
+			if (relay.batch == null) {
+				relay.batch = DatagramBatch.createPortable(batchSize);
+			}
+			relay.burstSessions = new UdpSession[batchSize];
+
+			if (shardCount > 1) {
+				// Shards sharing the common loops would just queue behind each other
+				relay.loop = EventLoop.start("UDP relay "+localPort+"/"+i,
+						options.isDedicatedLoop() ? Thread.MAX_PRIORITY : Thread.NORM_PRIORITY,
+						options.getBusyPollMicros());
+			}
+			else if (options.isDedicatedLoop()) {
+				relay.loop = EventLoop.startDedicated("UDP relay "+localPort, options.getBusyPollMicros());
+			}
+			else {
+				relay.loop = getEventLoops().next();
+			}
+			relay.loop.register(relay.channel, SelectionKey.OP_READ, relay);
+			relay.scheduleIdleSessionSweep();
+
+			if (first == null) {
+				first = relay;
+			}
+		}
+
+		System.out.println("Waiting for UDP datagrams on port: "+localPort+
+				(shardCount > 1 ? " ("+shardCount+" shards)" : "")+
+				(nativeBatching ? " (recvmmsg/sendmmsg)" : ""));
+		return first;
+	}
+
+	public static boolean isReusePortSupported() {
+		try (DatagramChannel probe = DatagramChannel.open()) {
+			return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static DatagramChannel openChannel(int localPort, UdpRelayOptions options, boolean reusePort) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			SocketTuning.apply(channel, options.getReceiveBufferSize(),
+					options.getSendBufferSize(), options.getTrafficClass());
+			if (reusePort) {
+				// The kernel hashes each flow to one of the sockets sharing the port,
+				// so a client's datagrams always arrive at the same shard
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			channel.bind(new InetSocketAddress(options.getBindAddress(), localPort));
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	// Returns null if burst mode is not enabled for this relay
+	public UdpBurstStats getBurstStats() {
+		return burstStats;
+	}
+
+	public UdpRelayMetrics getMetrics() {
+		return metrics;
+	}
+
+	private void scheduleIdleSessionSweep() {
+		loop.schedule(new Runnable() {
 			@Override
 			public void run() {
-				DatagramPacket pkt = new DatagramPacket(new byte[1500], 0);
-				SocketAddress clientAddr = null;
-				
-				System.out.println("Waiting for UDP datagrams on port: "+dgramSocket.getLocalPort());
-				
+				closeIdleSessions();
+				scheduleIdleSessionSweep();
+			}
+		}, Math.max(1000, options.getSessionIdleTimeoutMs() / 4));
+	}
+
+	private void closeIdleSessions() {
+		long now = System.nanoTime();
+		long timeoutNs = TimeUnit.MILLISECONDS.toNanos(options.getSessionIdleTimeoutMs());
+
+		Iterator<UdpSession> iterator = sessions.values().iterator();
+		while (iterator.hasNext()) {
+			UdpSession session = iterator.next();
+			if (now - session.lastActivity >= timeoutNs) {
+				System.out.println("UDP session on port "+channel.socket().getLocalPort()+" for "+session.clientAddress+" expired");
+				iterator.remove();
+				forgetLastClient(session);
+				metrics.sessionClosed();
+				try {
+					session.upstream.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	// Returns the session for this client, creating a new one if needed.
+	// Returns null if the datagram should be dropped.
+	private UdpSession getSession(SocketAddress clientAddress) {
+		UdpSession session = sessions.get(clientAddress);
+		if (session != null) {
+			return session;
+		}
+
+		// The remote host only talks to us through the session sockets
+		if (clientAddress.equals(remoteAddress)) {
+			System.err.println("Warning: Dropping remote packet with no soliciting client");
+			metrics.recordDrop(UdpRelayMetrics.DropReason.UNSOLICITED_REMOTE);
+			return null;
+		}
+
+		if (sessions.size() >= options.getMaxSessions()) {
+			System.err.println("Warning: Dropping packet from "+clientAddress+" due to session limit");
+			metrics.recordDrop(UdpRelayMetrics.DropReason.SESSION_LIMIT);
+			return null;
+		}
+
+		DatagramChannel upstream = null;
+		try {
+			upstream = DatagramChannel.open();
+
+			// Session sockets carry the same burst load as the listening socket
+			SocketTuning.apply(upstream, options.getReceiveBufferSize(),
+					options.getSendBufferSize(), options.getTrafficClass());
+			upstream.bind(null);
+			upstream.configureBlocking(false);
+
+			session = new UdpSession(this, clientAddress, upstream);
+			upstream.register(loop.getSelector(), SelectionKey.OP_READ, session);
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (upstream != null) {
 				try {
-					for (;;) {
-						// Reset the length back to the original value
-						pkt.setLength(1500);
-						
-						// Wait for a UDP datagram
-						dgramSocket.receive(pkt);
-						
-						// This is from the remote host and needs to be relayed to our last known client
-						if (pkt.getSocketAddress().equals(remoteAddress)) {
-							if (clientAddr != null) {
-								pkt.setSocketAddress(clientAddr);
-								dgramSocket.send(pkt);
-							}
-							else {
-								System.err.println("Warning: Dropping remote packet with no soliciting client");
-							}
-						}
-						else {
-							// Remember this client address
-							clientAddr = pkt.getSocketAddress();
-							
-							pkt.setSocketAddress(remoteAddress);
-							dgramSocket.send(pkt);
-						}
+					upstream.close();
+				} catch (IOException e1) {}
+			}
+			metrics.recordDrop(UdpRelayMetrics.DropReason.SESSION_SETUP_FAILED);
+			return null;
+		}
+
+		sessions.put(clientAddress, session);
+		metrics.sessionOpened();
+		System.out.println("UDP session on port "+channel.socket().getLocalPort()+" started for "+clientAddress+
+				" (upstream port "+upstream.socket().getLocalPort()+")");
+		return session;
+	}
+
+	private void forgetLastClient(UdpSession session) {
+		if (lastClientSession == session) {
+			lastClientAddress = null;
+			lastClientSession = null;
+		}
+	}
+
+	void closeSession(UdpSession session) {
+		if (sessions.get(session.clientAddress) == session) {
+			sessions.remove(session.clientAddress);
+			metrics.sessionClosed();
+		}
+		forgetLastClient(session);
+		try {
+			session.upstream.close();
+		} catch (IOException e) {}
+	}
+
+	@Override
+	public void handleEvent(SelectionKey key) throws IOException {
+		forwardFromClients();
+	}
+
+	private void forwardFromClients() throws IOException {
+		// Drain everything queued on the socket until it's empty or the batch is full.
+		// If the batch fills up, the selector will wake us again for the remainder.
+		int count = batch.receive(channel);
+
+		for (int i = 0; i < count; i++) {
+			metrics.recordReceived(Direction.CLIENT_TO_REMOTE, batch.getLength(i));
+
+			SocketAddress source = batch.getSource(i);
+			UdpSession session;
+			if (source == lastClientAddress) {
+				session = lastClientSession;
+			}
+			else {
+				session = getSession(source);
+				if (session != null) {
+					lastClientAddress = source;
+					lastClientSession = session;
+				}
+			}
+			if (session != null) {
+				session.lastActivity = batch.getReceiveTime(i);
+			}
+			burstSessions[i] = session;
+		}
+
+		// Now flush the whole burst, with one send for each run of datagrams from
+		// the same client. Datagrams without a session have already been counted.
+		int from = 0;
+		while (from < count) {
+			UdpSession session = burstSessions[from];
+			int to = from + 1;
+			while (to < count && burstSessions[to] == session) {
+				burstSessions[to++] = null;
+			}
+			burstSessions[from] = null;
+
+			if (session != null) {
+				forwardToRemote(session, from, to);
+			}
+			from = to;
+		}
+
+		if (count != 0) {
+			metrics.recordQueueDepth(count);
+		}
+		if (burstStats != null) {
+			burstStats.recordBurst(count);
+		}
+	}
+
+	private void forwardToRemote(UdpSession session, int from, int to) {
+		if (!session.upstream.isOpen()) {
+			for (int i = from; i < to; i++) {
+				metrics.recordDrop(UdpRelayMetrics.DropReason.SEND_FAILED);
+			}
+			return;
+		}
+
+		try {
+			send(session.upstream, from, to, remoteAddress, Direction.CLIENT_TO_REMOTE);
+		} catch (IOException e) {
+			e.printStackTrace();
+			for (int i = from; i < to; i++) {
+				metrics.recordDrop(UdpRelayMetrics.DropReason.SEND_FAILED);
+			}
+			closeSession(session);
+		}
+	}
+
+	private void send(DatagramChannel sender, int from, int to, SocketAddress target, Direction direction) throws IOException {
+		int sent = batch.send(sender, from, to, target);
+		long now = System.nanoTime();
+		for (int i = from; i < from + sent; i++) {
+			metrics.recordSent(direction, batch.getLength(i), now - batch.getReceiveTime(i));
+		}
+
+		// Non-blocking sends discard datagrams that don't fit in the socket buffer
+		for (int i = from + sent; i < to; i++) {
+			metrics.recordDrop(UdpRelayMetrics.DropReason.SEND_BUFFER_FULL);
+		}
+	}
+
+	void forwardFromUpstream(UdpSession session) throws IOException {
+		int count = batch.receive(session.upstream);
+
+		// Relay the burst back to this session's client, skipping over
+		// anything that didn't come from the remote host
+		int from = 0;
+		for (int i = 0; i < count; i++) {
+			// Only the remote host should be sending to our session ports. Once a
+			// source has been checked, the same address object skips the check.
+			SocketAddress source = batch.getSource(i);
+			if (source != session.verifiedSource) {
+				if (!((InetSocketAddress) source).getAddress().equals(remoteAddress.getAddress())) {
+					System.err.println("Warning: Dropping packet from unexpected source: "+source);
+					metrics.recordDrop(UdpRelayMetrics.DropReason.UNEXPECTED_SOURCE);
+					if (from < i) {
+						send(channel, from, i, session.clientAddress, Direction.REMOTE_TO_CLIENT);
 					}
-				} catch (IOException e) {
-					e.printStackTrace();
-				} finally {
-					dgramSocket.close();
+					from = i + 1;
+					continue;
 				}
+				session.verifiedSource = source;
 			}
-		}.start();
+
+			metrics.recordReceived(Direction.REMOTE_TO_CLIENT, batch.getLength(i));
+			session.lastActivity = batch.getReceiveTime(i);
+		}
+		if (from < count) {
+			send(channel, from, count, session.clientAddress, Direction.REMOTE_TO_CLIENT);
+		}
+
+		if (count != 0) {
+			metrics.recordQueueDepth(count);
+		}
+		if (burstStats != null) {
+			burstStats.recordBurst(count);
+		}
 	}
 }
@@ -0,0 +1,175 @@
+package opengferelay.simplerelay;
+
+import java.net.InetAddress;
+
+public class UdpRelayOptions {
+	public static final int DEFAULT_BURST_SIZE = 64;
+	public static final long DEFAULT_SESSION_IDLE_TIMEOUT_MS = 60000;
+	public static final int DEFAULT_MAX_SESSIONS = 64;
+
+	private boolean burstMode;
+	private boolean nativeBatching;
+	private int burstSize = DEFAULT_BURST_SIZE;
+	private long sessionIdleTimeoutMs = DEFAULT_SESSION_IDLE_TIMEOUT_MS;
+	private int maxSessions = DEFAULT_MAX_SESSIONS;
+	private int shards = 1;
+	private InetAddress bindAddress;
+	private int receiveBufferSize;
+	private int sendBufferSize;
+	private int trafficClass = SocketTuning.TRAFFIC_CLASS_DEFAULT;
+	private boolean dedicatedLoop;
+	private long busyPollMicros;
+
+	public boolean isBurstMode() {
+		return burstMode;
+	}
+
+	// In burst mode, each wakeup drains every queued datagram (up to the
+	// burst size) before forwarding them all in one tight send loop
+	public UdpRelayOptions setBurstMode(boolean burstMode) {
+		this.burstMode = burstMode;
+		return this;
+	}
+
+	public boolean isNativeBatching() {
+		return nativeBatching;
+	}
+
+	// Receives and sends each burst with one recvmmsg()/sendmmsg() call rather
+	// than one call per datagram, so it only helps in burst mode. It needs Linux
+	// and JDK 22 or newer; anywhere else the relay warns and carries on with
+	// the portable engine.
+	public UdpRelayOptions setNativeBatching(boolean nativeBatching) {
+		this.nativeBatching = nativeBatching;
+		return this;
+	}
+
+	public int getBurstSize() {
+		return burstSize;
+	}
+
+	public UdpRelayOptions setBurstSize(int burstSize) {
+		if (burstSize <= 0) {
+			throw new IllegalArgumentException("Burst size must be positive: "+burstSize);
+		}
+		this.burstSize = burstSize;
+		return this;
+	}
+
+	public long getSessionIdleTimeoutMs() {
+		return sessionIdleTimeoutMs;
+	}
+
+	// Client sessions with no traffic in either direction for this long are closed
+	public UdpRelayOptions setSessionIdleTimeoutMs(long sessionIdleTimeoutMs) {
+		if (sessionIdleTimeoutMs <= 0) {
+			throw new IllegalArgumentException("Session idle timeout must be positive: "+sessionIdleTimeoutMs);
+		}
+		this.sessionIdleTimeoutMs = sessionIdleTimeoutMs;
+		return this;
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	// Datagrams from new clients are dropped while this many sessions are active
+	public UdpRelayOptions setMaxSessions(int maxSessions) {
+		if (maxSessions <= 0) {
+			throw new IllegalArgumentException("Max sessions must be positive: "+maxSessions);
+		}
+		this.maxSessions = maxSessions;
+		return this;
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	// Number of sockets opened on the port with SO_REUSEPORT, each forwarded by a
+	// loop of its own with its own sessions. The kernel spreads client flows across
+	// them, so this scales with the number of clients rather than with the bitrate
+	// of a single client. The session limit applies to each shard separately.
+	public UdpRelayOptions setShards(int shards) {
+		if (shards <= 0) {
+			throw new IllegalArgumentException("Shard count must be positive: "+shards);
+		}
+		this.shards = shards;
+		return this;
+	}
+
+	public InetAddress getBindAddress() {
+		return bindAddress;
+	}
+
+	// Local address to listen on; null listens on all interfaces
+	public UdpRelayOptions setBindAddress(InetAddress bindAddress) {
+		this.bindAddress = bindAddress;
+		return this;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	// SO_RCVBUF for the sockets of this relay; 0 leaves the OS default
+	public UdpRelayOptions setReceiveBufferSize(int receiveBufferSize) {
+		if (receiveBufferSize < 0) {
+			throw new IllegalArgumentException("Receive buffer size must not be negative: "+receiveBufferSize);
+		}
+		this.receiveBufferSize = receiveBufferSize;
+		return this;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	// SO_SNDBUF for the sockets of this relay; 0 leaves the OS default
+	public UdpRelayOptions setSendBufferSize(int sendBufferSize) {
+		if (sendBufferSize < 0) {
+			throw new IllegalArgumentException("Send buffer size must not be negative: "+sendBufferSize);
+		}
+		this.sendBufferSize = sendBufferSize;
+		return this;
+	}
+
+	public int getTrafficClass() {
+		return trafficClass;
+	}
+
+	// IP_TOS byte (DSCP << 2) for traffic sent by this relay, see SocketTuning
+	public UdpRelayOptions setTrafficClass(int trafficClass) {
+		if (trafficClass < 0 || trafficClass > 255) {
+			throw new IllegalArgumentException("Traffic class must be between 0 and 255: "+trafficClass);
+		}
+		this.trafficClass = trafficClass;
+		return this;
+	}
+
+	public boolean isDedicatedLoop() {
+		return dedicatedLoop;
+	}
+
+	// Gives this relay a high-priority event loop of its own instead of sharing
+	// one with other relays, so its datagrams never wait behind a burst on
+	// another port.
+	public UdpRelayOptions setDedicatedLoop(boolean dedicatedLoop) {
+		this.dedicatedLoop = dedicatedLoop;
+		return this;
+	}
+
+	public long getBusyPollMicros() {
+		return busyPollMicros;
+	}
+
+	// With a dedicated loop, keep polling for this long after each event before
+	// blocking again. This trades a busy core for lower wakeup latency; 0 disables it.
+	public UdpRelayOptions setBusyPollMicros(long busyPollMicros) {
+		if (busyPollMicros < 0) {
+			throw new IllegalArgumentException("Busy-poll time must not be negative: "+busyPollMicros);
+		}
+		this.busyPollMicros = busyPollMicros;
+		return this;
+	}
+}
@@ -0,0 +1,36 @@
+package opengferelay.simplerelay;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+// A single client of a UDP relay. Each session sends to the remote host from
+// its own ephemeral port, so replies come back already demultiplexed by port.
+class UdpSession implements EventLoop.Handler {
+	final UdpRelay relay;
+	final SocketAddress clientAddress;
+	final DatagramChannel upstream;
+
+	// System.nanoTime() of the last datagram in either direction
+	long lastActivity;
+
+	// Last upstream source address that was checked against the remote host
+	SocketAddress verifiedSource;
+
+	UdpSession(UdpRelay relay, SocketAddress clientAddress, DatagramChannel upstream) {
+		this.relay = relay;
+		this.clientAddress = clientAddress;
+		this.upstream = upstream;
+	}
+
+	@Override
+	public void handleEvent(SelectionKey key) {
+		try {
+			relay.forwardFromUpstream(this);
+		} catch (IOException e) {
+			e.printStackTrace();
+			relay.closeSession(this);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2006-2007, subject to LGPL version 3
+ */
+package org.veryquick.embweb;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Resolves client host names for logging without ever blocking the caller. Lookups
+ * run on a single background thread and results are cached; until a lookup finishes
+ * the literal address is used instead.
+ * <p/>
+ * Copyright 2006-2007, subject to LGPL version 3
+ */
+public class ClientNameResolver {
+
+  /**
+   * Maximum number of cached names before the cache is flushed
+   */
+  private static final int MAX_CACHED_NAMES = 1024;
+
+  /**
+   * Resolved names by address
+   */
+  private final ConcurrentHashMap<InetAddress, String> names = new ConcurrentHashMap<InetAddress, String>();
+
+  /**
+   * Thread the lookups run on
+   */
+  private final ExecutorService lookupExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "client name resolver");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * Get a printable name for the client, starting a background lookup if needed
+   *
+   * @param address client address
+   * @return the resolved host name if known, otherwise the literal address
+   */
+  public String getName(final InetAddress address) {
+    String literal = address.getHostAddress();
+    String name = names.putIfAbsent(address, literal);
+    if (name != null) {
+      return name;
+    }
+
+    if (names.size() > MAX_CACHED_NAMES) {
+      names.clear();
+    }
+
+    lookupExecutor.execute(new Runnable() {
+      public void run() {
+        names.put(address, address.getCanonicalHostName());
+      }
+    });
+    return literal;
+  }
+}
@@ -0,0 +1,21 @@
+/**
+ * Copyright 2006-2007, subject to LGPL version 3
+ */
+package org.veryquick.embweb;
+
+import java.net.Socket;
+
+/**
+ * Notified of every connection the server accepts, before any request is read
+ * <p/>
+ * Copyright 2006-2007, subject to LGPL version 3
+ */
+public interface ConnectionListener {
+
+  /**
+   * Called on the accept thread, so implementations must not block
+   *
+   * @param socket the accepted socket
+   */
+  void connectionAccepted(Socket socket);
+}
@@ -11,18 +11,27 @@ import org.apache.log4j.Logger;
 import javax.net.ssl.SSLContext;
 import javax.net.ServerSocketFactory;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Ultra lightweight web server for embedding in applications
@@ -40,6 +49,11 @@ public class EmbeddedServer {
    */
   public static final Logger logger = Logger.getLogger(EmbeddedServer.class);
 
+  /**
+   * Longest request or header line we accept
+   */
+  private static final int MAX_LINE_LENGTH = 8192;
+
   /**
    * Port to serve clients on
    */
@@ -56,6 +70,31 @@ public class EmbeddedServer {
    */
   private HttpRequestHandler clientHandler;
 
+  /**
+   * Settings
+   */
+  private ServerConfig config;
+
+  /**
+   * Executor that runs the request handlers
+   */
+  private ExecutorService executor;
+
+  /**
+   * Resolver for client names in log messages, or null to log addresses only
+   */
+  private ClientNameResolver clientNameResolver;
+
+  /**
+   * Cap on connections kept open between requests
+   */
+  private int maxIdleConnections;
+
+  /**
+   * Connections currently kept open between requests
+   */
+  private final AtomicInteger idleConnections = new AtomicInteger();
+
   /**
    * New instance
    *
@@ -63,15 +102,32 @@ public class EmbeddedServer {
    * @throws Exception
    */
   public static EmbeddedServer createInstance(int serverPort, final SSLContext context, HttpRequestHandler handler) throws Exception {
-    final EmbeddedServer server = new EmbeddedServer(serverPort, handler);
+    return createInstance(serverPort, context, handler, new ServerConfig());
+  }
+
+  /**
+   * New instance. The listening socket is bound before this returns, so a port
+   * that is already in use is reported to the caller rather than just logged.
+   *
+   * @param serverPort
+   * @param context SSL context, or null for plain HTTP
+   * @param handler
+   * @param config optional settings
+   * @throws java.net.BindException if the port can't be bound
+   * @throws Exception
+   */
+  public static EmbeddedServer createInstance(int serverPort, final SSLContext context, HttpRequestHandler handler,
+                                              ServerConfig config) throws Exception {
+    final EmbeddedServer server = new EmbeddedServer(serverPort, handler, config);
+    final ServerSocket serverSocket = server.bind(context);
     Thread thread = new Thread(
         new Runnable() {
           public void run() {
             try {
-              server.start(context);
+              server.serve(serverSocket);
             }
             catch (IOException e) {
-              logger.error("Failed to start server", e);
+              logger.error("Server stopped", e);
             }
           }
         }, "server thread"
@@ -85,11 +141,48 @@ public class EmbeddedServer {
    *
    * @param serverPort
    * @param handler
+   * @param config
    * @throws Exception
    */
-  private EmbeddedServer(int serverPort, HttpRequestHandler handler) throws Exception {
+  private EmbeddedServer(int serverPort, HttpRequestHandler handler, ServerConfig config) throws Exception {
     this.serverPort = serverPort;
     this.clientHandler = handler;
+    this.config = config;
+    this.executor = config.getExecutor();
+    this.maxIdleConnections = config.getMaxIdleConnections();
+    if (this.executor == null) {
+      this.executor = createDefaultExecutor(serverPort);
+
+      // Idle connections hold pool threads, so leave room for new clients
+      this.maxIdleConnections = Math.min(this.maxIdleConnections, ServerConfig.DEFAULT_MAX_HANDLER_THREADS / 2);
+    }
+    if (config.isResolveClientNames()) {
+      this.clientNameResolver = new ClientNameResolver();
+    }
+  }
+
+  /**
+   * Create a bounded pool of platform threads for request handling
+   *
+   * @param serverPort port used to name the threads
+   * @return the executor
+   */
+  private static ExecutorService createDefaultExecutor(final int serverPort) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(
+        ServerConfig.DEFAULT_MAX_HANDLER_THREADS, ServerConfig.DEFAULT_MAX_HANDLER_THREADS,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger threadNumber = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "http-" + serverPort + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }
+    );
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
   }
 
   /**
@@ -98,23 +191,43 @@ public class EmbeddedServer {
    * @throws java.io.IOException
    */
   public void start(SSLContext context) throws IOException {
-    this.alive = true;
+    serve(bind(context));
+  }
+
+  /**
+   * Bind the listening socket
+   *
+   * @param context SSL context, or null for plain HTTP
+   * @return the bound socket
+   * @throws java.io.IOException
+   */
+  private ServerSocket bind(SSLContext context) throws IOException {
     ServerSocket serverSocket;
     if (context != null) {
       ServerSocketFactory ssocketFactory = context.getServerSocketFactory();
-      serverSocket = ssocketFactory.createServerSocket(this.serverPort);
+      serverSocket = ssocketFactory.createServerSocket(this.serverPort, 0, config.getBindAddress());
     }
     else {
-      serverSocket = new ServerSocket(this.serverPort);
+      serverSocket = new ServerSocket(this.serverPort, 0, config.getBindAddress());
     }
-    logger.info("Server up on " + this.serverPort);
+    return serverSocket;
+  }
+
+  /**
+   * Accept connections until the server is stopped
+   *
+   * @param serverSocket bound listening socket
+   * @throws java.io.IOException
+   */
+  private void serve(ServerSocket serverSocket) throws IOException {
+    this.alive = true;
+    logger.info("Server up on " + serverSocket.getLocalSocketAddress());
     while (alive) {
       Socket clientRequestSocket = serverSocket.accept();
-      Thread thread = new Thread(
-          new RequestHandler(clientRequestSocket),
-          clientRequestSocket.getInetAddress().getCanonicalHostName()
-      );
-      thread.start();
+      if (config.getConnectionListener() != null) {
+        config.getConnectionListener().connectionAccepted(clientRequestSocket);
+      }
+      executor.execute(new RequestHandler(clientRequestSocket));
     }
   }
 
@@ -139,56 +252,227 @@ public class EmbeddedServer {
     }
 
     /**
-     * Handle the request
+     * Describe the client for logging without blocking on name resolution
+     *
+     * @return client description
+     */
+    private String describeClient() {
+      if (clientNameResolver == null) {
+        return String.valueOf(clientRequestSocket.getRemoteSocketAddress());
+      }
+      return clientNameResolver.getName(clientRequestSocket.getInetAddress()) + ":" + clientRequestSocket.getPort();
+    }
+
+    /**
+     * Read a CRLF or LF terminated header line
+     *
+     * @param in stream to read from
+     * @return the line without its terminator, or null at end of stream
+     * @throws IOException on error or if the line is too long
+     */
+    private String readLine(InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+      for (;;) {
+        int c = in.read();
+        if (c < 0) {
+          return line.length() == 0 ? null : line.toString();
+        }
+        if (c == '\n') {
+          int length = line.length();
+          if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+          }
+          return line.toString();
+        }
+        if (line.length() >= MAX_LINE_LENGTH) {
+          throw new IOException("Request line too long");
+        }
+        line.append((char) c);
+      }
+    }
+
+    /**
+     * Discard a request body so the next request on the connection can be read
+     *
+     * @param in stream to read from
+     * @param length body length
+     * @throws IOException on error
+     */
+    private void skipBody(InputStream in, long length) throws IOException {
+      while (length > 0) {
+        long skipped = in.skip(length);
+        if (skipped <= 0) {
+          if (in.read() < 0) {
+            throw new EOFException("Connection closed while reading request body");
+          }
+          skipped = 1;
+        }
+        length -= skipped;
+      }
+    }
+
+    /**
+     * Take one of the idle connection slots, if any are left
+     *
+     * @return true if the connection may be kept open
+     */
+    private boolean reserveIdleSlot() {
+      for (;;) {
+        int idle = idleConnections.get();
+        if (idle >= maxIdleConnections) {
+          return false;
+        }
+        if (idleConnections.compareAndSet(idle, idle + 1)) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Answer a request we can't handle and close the connection, since we may not
+     * know where the next request starts
+     *
+     * @param response the error response
+     * @param outputStream stream to write to
+     * @throws IOException on error
+     */
+    private void rejectRequest(Response response, OutputStream outputStream) throws IOException {
+      response.writeToStream(outputStream, false);
+      outputStream.flush();
+    }
+
+    /**
+     * Handle requests until the client closes the connection, asks us to close it,
+     * goes idle or reaches the per-connection request limit. Pipelined requests are
+     * answered in order as they are read.
      *
      * @see Thread#run()
      */
     public void run() {
+      // Set while the connection waits for another request after a keep-alive response
+      boolean holdsIdleSlot = false;
       try {
-        InputStream requestInputStream = clientRequestSocket.getInputStream();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(requestInputStream));
+        clientRequestSocket.setSoTimeout(config.getKeepAliveTimeoutMs());
+        if (config.getTrafficClass() != 0) {
+          clientRequestSocket.setTrafficClass(config.getTrafficClass());
+        }
+        InputStream requestInputStream = new BufferedInputStream(clientRequestSocket.getInputStream());
+        OutputStream outputStream = new BufferedOutputStream(clientRequestSocket.getOutputStream());
+        int requestCount = 0;
         String line = null;
-        while ((line = reader.readLine()) != null) {
+        while ((line = readLine(requestInputStream)) != null) {
+          if (holdsIdleSlot) {
+            idleConnections.decrementAndGet();
+            holdsIdleSlot = false;
+          }
           logger.debug(line);
 
-          if (line.startsWith("GET") || line.startsWith("POST")) {
-            StringTokenizer tokenizer = new StringTokenizer(line, " ");
-            String requestType = tokenizer.nextToken();
-            String url = tokenizer.nextToken();
-
-            Map<String, String> parameters = new HashMap<String, String>();
-
-            int indexOfQuestionMark = url.indexOf("?");
-            if (indexOfQuestionMark >= 0) {
-              // there are URL parameters
-              String parametersToParse = url.substring(indexOfQuestionMark + 1);
-              url = url.substring(0, indexOfQuestionMark);
-              StringTokenizer parameterTokenizer = new StringTokenizer(parametersToParse, "&");
-              while (parameterTokenizer.hasMoreTokens()) {
-                String[] keyAndValue = parameterTokenizer.nextToken().split("=");
-                String key = URLDecoder.decode(keyAndValue[0], "utf-8");
-                String value = URLDecoder.decode(keyAndValue[1], "utf-8");
-                parameters.put(key, value);
-              }
+          if (line.length() == 0) {
+            // Tolerate stray blank lines between requests
+            continue;
+          }
+
+          StringTokenizer tokenizer = new StringTokenizer(line, " ");
+          String requestType = tokenizer.nextToken();
+          String url = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : "/";
+          String version = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : "HTTP/1.0";
+
+          // Header names are case-insensitive, so they're stored in lower case
+          Map<String, String> headers = new HashMap<String, String>();
+          String headerLine;
+          while ((headerLine = readLine(requestInputStream)) != null && headerLine.length() != 0) {
+            logger.debug(headerLine);
+            int indexOfColon = headerLine.indexOf(':');
+            if (indexOfColon > 0) {
+              headers.put(headerLine.substring(0, indexOfColon).trim().toLowerCase(Locale.ROOT),
+                  headerLine.substring(indexOfColon + 1).trim());
             }
+          }
 
-            HttpRequestHandler.Type type;
-            if("POST".equals(requestType)){
-              type = HttpRequestHandler.POST;
+          // We can't find the end of a chunked body, so the request is answered
+          // but the connection isn't reused. Transfer-Encoding overrides any
+          // Content-Length.
+          boolean unknownBodyLength = headers.containsKey("transfer-encoding");
+          String contentLength = headers.get("content-length");
+          if (contentLength != null && !unknownBodyLength) {
+            long length;
+            try {
+              length = Long.parseLong(contentLength);
+            }
+            catch (NumberFormatException e) {
+              length = -1;
             }
-            else{
-              type = HttpRequestHandler.GET;
+            if (length < 0) {
+              Response response = new Response();
+              response.setBadRequest("Invalid Content-Length");
+              rejectRequest(response, outputStream);
+              break;
+            }
+            skipBody(requestInputStream, length);
+          }
+
+          if (!"GET".equals(requestType) && !"POST".equals(requestType)) {
+            Response response = new Response();
+            response.setNotImplemented();
+            rejectRequest(response, outputStream);
+            break;
+          }
+
+          Map<String, String> parameters = new HashMap<String, String>();
+
+          int indexOfQuestionMark = url.indexOf("?");
+          if (indexOfQuestionMark >= 0) {
+            // there are URL parameters
+            String parametersToParse = url.substring(indexOfQuestionMark + 1);
+            url = url.substring(0, indexOfQuestionMark);
+            StringTokenizer parameterTokenizer = new StringTokenizer(parametersToParse, "&");
+            while (parameterTokenizer.hasMoreTokens()) {
+              String[] keyAndValue = parameterTokenizer.nextToken().split("=");
+              String key = URLDecoder.decode(keyAndValue[0], "utf-8");
+              String value = URLDecoder.decode(keyAndValue[1], "utf-8");
+              parameters.put(key, value);
             }
+          }
+
+          HttpRequestHandler.Type type;
+          if("POST".equals(requestType)){
+            type = HttpRequestHandler.POST;
+          }
+          else{
+            type = HttpRequestHandler.GET;
+          }
+
+          requestCount++;
+          boolean keepAlive = isKeepAlive(version, headers.get("connection"))
+              && requestCount < config.getMaxRequestsPerConnection() && !unknownBodyLength;
+
+          System.out.println("Request from "+describeClient());
+          Response response = EmbeddedServer.this.clientHandler.handleRequest(
+              new Request(type, url, parameters, headers, clientRequestSocket.getRemoteSocketAddress())
+          );
+          if (response.isUnknownLength() && !"HTTP/1.1".equals(version)) {
+            // Older clients can't take a chunked body, so end it by closing
+            keepAlive = false;
+          }
+          if (keepAlive && !reserveIdleSlot()) {
+            keepAlive = false;
+          }
+          holdsIdleSlot = keepAlive;
+          response.writeToStream(outputStream, keepAlive);
 
-            System.out.println("Request from "+clientRequestSocket.getRemoteSocketAddress());
-            Response response = EmbeddedServer.this.clientHandler.handleRequest(
-                type, url, parameters
-            );
-            OutputStream outputStream = clientRequestSocket.getOutputStream();
-            response.writeToStream(outputStream);
-            outputStream.close();
+          // Don't hold the response back while we wait for the next request
+          // unless the client already pipelined it
+          if (!keepAlive || requestInputStream.available() == 0) {
+            outputStream.flush();
+          }
+          if (!keepAlive) {
+            break;
           }
         }
+        outputStream.flush();
+      }
+      catch (SocketTimeoutException e) {
+        logger.debug("Closing idle connection");
       }
       catch (SocketException e) {
         logger.debug("Socket error", e);
@@ -196,6 +480,41 @@ public class EmbeddedServer {
       catch (IOException e) {
         logger.error("I/O Error", e);
       }
+      finally {
+        if (holdsIdleSlot) {
+          idleConnections.decrementAndGet();
+        }
+        try {
+          clientRequestSocket.close();
+        }
+        catch (IOException e) {
+          logger.debug("Failed to close socket", e);
+        }
+      }
+    }
+
+    /**
+     * Decide whether the connection persists after this request
+     *
+     * @param version HTTP version from the request line
+     * @param connection value of the Connection header, or null
+     * @return true if the connection should be kept open
+     */
+    private boolean isKeepAlive(String version, String connection) {
+      if (connection != null) {
+        for (String token : connection.split(",")) {
+          token = token.trim();
+          if ("close".equalsIgnoreCase(token)) {
+            return false;
+          }
+          if ("keep-alive".equalsIgnoreCase(token)) {
+            return true;
+          }
+        }
+      }
+
+      // HTTP/1.1 connections are persistent by default, older ones aren't
+      return "HTTP/1.1".equals(version);
     }
 
   }
@@ -39,6 +39,17 @@ public interface HttpRequestHandler {
    */
   Response handleRequest(HttpRequestHandler.Type type, String url, Map<String, String> parameters);
 
+  /**
+   * Handle a request with access to its headers. The server calls this method; by default
+   * it delegates to {@link #handleRequest(Type, String, Map)}.
+   *
+   * @param request the request
+   * @return a response response
+   */
+  default Response handleRequest(Request request) {
+    return handleRequest(request.getType(), request.getUrl(), request.getParameters());
+  }
+
   public static class Type {
 
   }
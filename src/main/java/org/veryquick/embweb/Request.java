@@ -0,0 +1,98 @@
+/**
+ * Copyright 2006-2007, subject to LGPL version 3
+ */
+package org.veryquick.embweb;
+
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A parsed request for the ultra light-weight web server
+ * <p/>
+ * Copyright 2006-2007, subject to LGPL version 3
+ */
+public class Request {
+
+  /**
+   * The type of request
+   */
+  private final HttpRequestHandler.Type type;
+
+  /**
+   * The url without its parameters
+   */
+  private final String url;
+
+  /**
+   * URL parameters
+   */
+  private final Map<String, String> parameters;
+
+  /**
+   * Request headers with lower case names
+   */
+  private final Map<String, String> headers;
+
+  /**
+   * Address of the client, or null if unknown
+   */
+  private final SocketAddress remoteAddress;
+
+  /**
+   * Create a request
+   *
+   * @param type          the type of request
+   * @param url           the url relative to the host base
+   * @param parameters    URL parameters
+   * @param headers       request headers with lower case names
+   * @param remoteAddress client address, or null if unknown
+   */
+  public Request(HttpRequestHandler.Type type, String url, Map<String, String> parameters,
+                 Map<String, String> headers, SocketAddress remoteAddress) {
+    this.type = type;
+    this.url = url;
+    this.parameters = parameters;
+    this.headers = headers != null ? headers : Collections.<String, String>emptyMap();
+    this.remoteAddress = remoteAddress;
+  }
+
+  /**
+   * @return the type of request
+   */
+  public HttpRequestHandler.Type getType() {
+    return type;
+  }
+
+  /**
+   * @return the url relative to the host base, without parameters
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * @return URL parameters by name
+   */
+  public Map<String, String> getParameters() {
+    return parameters;
+  }
+
+  /**
+   * Get a request header
+   *
+   * @param name header name, in any case
+   * @return the header value, or null if it wasn't sent
+   */
+  public String getHeader(String name) {
+    return headers.get(name.toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * @return address of the client, or null if unknown
+   */
+  public SocketAddress getRemoteAddress() {
+    return remoteAddress;
+  }
+}
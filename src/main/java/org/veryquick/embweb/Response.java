@@ -9,8 +9,9 @@ package org.veryquick.embweb;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Response container for the ultra light-weight web server
@@ -29,7 +30,27 @@ public class Response {
   public static final Logger logger = Logger.getLogger(Response.class);
 
   /**
-   * The headers
+   * Line terminator
+   */
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  /**
+   * Terminating chunk of a chunked body
+   */
+  private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+  /**
+   * Status of a response that must not describe a body
+   */
+  private static final String NOT_MODIFIED = "304 Not Modified";
+
+  /**
+   * Status code and reason, e.g. "200 OK"
+   */
+  private String status;
+
+  /**
+   * Additional headers, each terminated by CRLF
    */
   private StringBuilder headers;
 
@@ -48,6 +69,21 @@ public class Response {
    */
   private byte[] bytes;
 
+  /**
+   * Streamed body, copied to the client as it is read
+   */
+  private InputStream stream;
+
+  /**
+   * Length of the streamed body, or -1 if unknown
+   */
+  private long streamLength;
+
+  /**
+   * Size of the buffer used to copy a streamed body
+   */
+  private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+
 
   /**
    * Create new response
@@ -64,8 +100,8 @@ public class Response {
    * @param url url to redirect to
    */
   public void setRedirect(String url) {
-    headers.append("HTTP/1.1 307 Temporary Redirect\n");
-    headers.append("Location: /\n");
+    status = "307 Temporary Redirect";
+    headers.append("Location: /\r\n");
   }
 
   /**
@@ -78,44 +114,168 @@ public class Response {
   }
 
   /**
-   * Mark the response as 200 OK. This also sets the content length, so the method
-   * should not be called until all content has been appended
+   * Add a response header
+   *
+   * @param name header name
+   * @param value header value
+   */
+  public void addHeader(String name, String value) {
+    headers.append(name);
+    headers.append(": ");
+    headers.append(value);
+    headers.append("\r\n");
+  }
+
+  /**
+   * Mark the response as 200 OK. The content length is computed when the response
+   * is written, so content may still be appended afterwards
    */
   public void setOk() {
-    headers.append("HTTP/1.1 200 OK\n");
-    headers.append("Content-Type: ");
-    headers.append(this.contentType);
-    headers.append("\n");
-    try {
-      headers.append("Content-Length: ");
-      if (this.bytes != null) {
-        headers.append(bytes.length);
+    status = "200 OK";
+  }
+
+  /**
+   * Mark the response as 304 Not Modified, with no body. It carries neither a
+   * Content-Length nor a Content-Type, since those would describe the cached
+   * representation rather than this empty response
+   */
+  public void setNotModified() {
+    status = NOT_MODIFIED;
+    this.bytes = null;
+    this.stream = null;
+    body.setLength(0);
+  }
+
+  /**
+   * Write the complete response to the given output stream
+   *
+   * @param outputStream stream
+   * @throws IOException on error
+   */
+  public void writeToStream(OutputStream outputStream) throws IOException {
+    writeToStream(outputStream, false);
+  }
+
+  /**
+   * Write the complete response to the given output stream. Buffered responses always
+   * carry an exact Content-Length so that the connection can be reused. A streamed body
+   * of unknown length uses chunked encoding on a persistent connection, otherwise it is
+   * delimited by closing the connection. A streamed body is always closed afterwards.
+   *
+   * @param outputStream stream
+   * @param keepAlive whether the connection stays open after this response
+   * @throws IOException on error
+   */
+  public void writeToStream(OutputStream outputStream, boolean keepAlive) throws IOException {
+    if (this.stream != null) {
+      try {
+        writeStreamToStream(outputStream, keepAlive);
       }
-      else {
-        headers.append(body.toString().getBytes("utf-8").length);
+      finally {
+        this.stream.close();
       }
-      headers.append("\n");
+      return;
     }
-    catch (UnsupportedEncodingException e) {
-      logger.error("failed to encode", e);
+
+    byte[] content = this.bytes != null ? this.bytes : body.toString().getBytes(StandardCharsets.UTF_8);
+
+    StringBuilder head = startHead();
+    if (!NOT_MODIFIED.equals(status)) {
+      head.append("Content-Length: ");
+      head.append(content.length);
+      head.append("\r\n");
     }
+    finishHead(head, keepAlive);
+
+    outputStream.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    outputStream.write(content);
   }
 
   /**
-   * Write the complete response to the given output stream
+   * Write the response with the streamed body
    *
    * @param outputStream stream
+   * @param keepAlive whether the connection stays open after this response
    * @throws IOException on error
    */
-  public void writeToStream(OutputStream outputStream) throws IOException {
-    headers.append("\n");
-    outputStream.write(headers.toString().getBytes("iso-8859-1"));
-    if (this.bytes != null) {
-      outputStream.write(this.bytes);
+  private void writeStreamToStream(OutputStream outputStream, boolean keepAlive) throws IOException {
+    boolean chunked = streamLength < 0 && keepAlive;
+
+    StringBuilder head = startHead();
+    if (streamLength >= 0) {
+      head.append("Content-Length: ");
+      head.append(streamLength);
+      head.append("\r\n");
     }
-    else {
-      outputStream.write(body.toString().getBytes("iso-8859-1"));
+    else if (chunked) {
+      head.append("Transfer-Encoding: chunked\r\n");
     }
+    finishHead(head, keepAlive);
+    outputStream.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+    long remaining = streamLength;
+    int bytesRead;
+    while (remaining != 0 && (bytesRead = stream.read(buffer)) > 0) {
+      if (chunked) {
+        outputStream.write((Integer.toHexString(bytesRead) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        outputStream.write(buffer, 0, bytesRead);
+        outputStream.write(CRLF);
+      }
+      else {
+        outputStream.write(buffer, 0, bytesRead);
+      }
+      if (remaining > 0) {
+        remaining -= bytesRead;
+      }
+    }
+
+    if (remaining > 0) {
+      // The client is expecting more, so the connection can't be reused
+      throw new IOException("Streamed body ended " + remaining + " bytes early");
+    }
+    if (chunked) {
+      outputStream.write(LAST_CHUNK);
+    }
+  }
+
+  /**
+   * Start the status line and common headers
+   *
+   * @return the head so far
+   */
+  private StringBuilder startHead() {
+    StringBuilder head = new StringBuilder();
+    head.append("HTTP/1.1 ");
+    head.append(status != null ? status : "200 OK");
+    head.append("\r\n");
+    if (!NOT_MODIFIED.equals(status)) {
+      head.append("Content-Type: ");
+      head.append(this.contentType);
+      head.append("\r\n");
+    }
+    return head;
+  }
+
+  /**
+   * Append the additional headers and the end of the head
+   *
+   * @param head the head so far
+   * @param keepAlive whether the connection stays open after this response
+   */
+  private void finishHead(StringBuilder head, boolean keepAlive) {
+    head.append(headers);
+    head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+    head.append("\r\n");
+  }
+
+  /**
+   * Whether the body is streamed without a known length
+   *
+   * @return true if the length is unknown until the stream ends
+   */
+  public boolean isUnknownLength() {
+    return this.stream != null && this.streamLength < 0;
   }
 
   /**
@@ -124,26 +284,74 @@ public class Response {
    * @param e the exception
    */
   public void setError(Exception e) {
-    headers.append("HTTP/1.1 500 ");
-    headers.append(e.getMessage());
-    headers.append("\n");
+    status = "500 " + toReasonPhrase(e.getMessage());
+    this.bytes = null;
+    this.stream = null;
+    body.setLength(0);
+    contentType = "text/html; charset=utf-8";
     body.append("<html><body><h1><p>500 Internal server error</p></h1>");
     body.append(e.getMessage());
     body.append("</body></html>");
   }
 
+  /**
+   * Set a 400 bad request
+   *
+   * @param reason what was wrong with the request
+   */
+  public void setBadRequest(String reason) {
+    status = "400 Bad request";
+    this.bytes = null;
+    this.stream = null;
+    body.setLength(0);
+    contentType = "text/html; charset=utf-8";
+    body.append("<html><body><h1><p>400 Bad request</p></h1>");
+    body.append(reason);
+    body.append("</body></html>");
+  }
+
+  /**
+   * Set a 501 not implemented, for request methods we don't handle
+   */
+  public void setNotImplemented() {
+    status = "501 Not implemented";
+    this.bytes = null;
+    this.stream = null;
+    body.setLength(0);
+    contentType = "text/html; charset=utf-8";
+    body.append("<html><body><h1><p>501 Not implemented</p></h1>");
+    body.append("</body></html>");
+  }
+
   /**
    * Set a 404 not found
    *
    * @param url url
    */
   public void setNotFound(String url) {
-    headers.append("HTTP/1.1 404 Resource not found\n");
+    status = "404 Resource not found";
+    this.bytes = null;
+    this.stream = null;
+    body.setLength(0);
+    contentType = "text/html; charset=utf-8";
     body.append("<html><body><h1><p>404 Resource not found</p></h1>");
     body.append(url);
     body.append("</body></html>");
   }
 
+  /**
+   * Make a message safe to use as a status line reason phrase
+   *
+   * @param message message, possibly null
+   * @return message on a single line
+   */
+  private static String toReasonPhrase(String message) {
+    if (message == null) {
+      return "Internal server error";
+    }
+    return message.replace('\r', ' ').replace('\n', ' ');
+  }
+
   /**
    * Set the content type (defaults to text/html utf-8)
    *
@@ -161,4 +369,15 @@ public class Response {
   public void setBinaryContent(byte[] bytes) {
     this.bytes = bytes;
   }
+
+  /**
+   * Set a body that is copied to the client as it is read, without buffering it
+   *
+   * @param stream body, closed once the response has been written
+   * @param length body length, or -1 if unknown
+   */
+  public void setStreamingContent(InputStream stream, long length) {
+    this.stream = stream;
+    this.streamLength = length;
+  }
 }
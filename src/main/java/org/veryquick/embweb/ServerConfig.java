@@ -0,0 +1,255 @@
+/**
+ * Copyright 2006-2007, subject to LGPL version 3
+ */
+package org.veryquick.embweb;
+
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Optional settings for the ultra light-weight web server
+ * <p/>
+ * Copyright 2006-2007, subject to LGPL version 3
+ */
+public class ServerConfig {
+
+  /**
+   * Default number of handler threads when no executor is supplied
+   */
+  public static final int DEFAULT_MAX_HANDLER_THREADS = 64;
+
+  /**
+   * Default time an idle persistent connection is kept open
+   */
+  public static final int DEFAULT_KEEP_ALIVE_TIMEOUT_MS = 15000;
+
+  /**
+   * Default number of requests served on one connection before it is closed
+   */
+  public static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+
+  /**
+   * Default number of connections kept open between requests
+   */
+  public static final int DEFAULT_MAX_IDLE_CONNECTIONS = Integer.MAX_VALUE;
+
+  /**
+   * Executor that runs the request handlers
+   */
+  private ExecutorService executor;
+
+  /**
+   * Whether client host names are resolved for logging
+   */
+  private boolean resolveClientNames;
+
+  /**
+   * Idle timeout for persistent connections
+   */
+  private int keepAliveTimeoutMs = DEFAULT_KEEP_ALIVE_TIMEOUT_MS;
+
+  /**
+   * Request cap per connection
+   */
+  private int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+
+  /**
+   * Cap on connections kept open between requests
+   */
+  private int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+
+  /**
+   * Listener for accepted connections
+   */
+  private ConnectionListener connectionListener;
+
+  /**
+   * IP traffic class for accepted connections
+   */
+  private int trafficClass;
+
+  /**
+   * Local address to listen on
+   */
+  private InetAddress bindAddress;
+
+  /**
+   * Get the executor that runs the request handlers
+   *
+   * @return the executor, or null to use a bounded pool of platform threads
+   */
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Set the executor that runs the request handlers. The accept loop only hands
+   * accepted connections to this executor and never creates threads itself.
+   *
+   * @param executor executor
+   * @return this config
+   */
+  public ServerConfig setExecutor(ExecutorService executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * Whether client host names are resolved for logging
+   *
+   * @return true if names are resolved
+   */
+  public boolean isResolveClientNames() {
+    return resolveClientNames;
+  }
+
+  /**
+   * Resolve client host names for logging. Lookups are asynchronous and cached, so
+   * the accept loop and request handling never wait on reverse DNS. Off by default.
+   *
+   * @param resolveClientNames true to resolve names
+   * @return this config
+   */
+  public ServerConfig setResolveClientNames(boolean resolveClientNames) {
+    this.resolveClientNames = resolveClientNames;
+    return this;
+  }
+
+  /**
+   * Get the idle timeout for persistent connections
+   *
+   * @return timeout in milliseconds
+   */
+  public int getKeepAliveTimeoutMs() {
+    return keepAliveTimeoutMs;
+  }
+
+  /**
+   * Set how long a connection may sit idle between requests before it is closed
+   *
+   * @param keepAliveTimeoutMs timeout in milliseconds
+   * @return this config
+   */
+  public ServerConfig setKeepAliveTimeoutMs(int keepAliveTimeoutMs) {
+    if (keepAliveTimeoutMs <= 0) {
+      throw new IllegalArgumentException("keep-alive timeout must be positive: " + keepAliveTimeoutMs);
+    }
+    this.keepAliveTimeoutMs = keepAliveTimeoutMs;
+    return this;
+  }
+
+  /**
+   * Get the request cap per connection
+   *
+   * @return maximum requests served on one connection
+   */
+  public int getMaxRequestsPerConnection() {
+    return maxRequestsPerConnection;
+  }
+
+  /**
+   * Set how many requests are served on one connection before it is closed.
+   * A value of 1 disables persistent connections.
+   *
+   * @param maxRequestsPerConnection maximum requests per connection
+   * @return this config
+   */
+  public ServerConfig setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+    if (maxRequestsPerConnection <= 0) {
+      throw new IllegalArgumentException("request cap must be positive: " + maxRequestsPerConnection);
+    }
+    this.maxRequestsPerConnection = maxRequestsPerConnection;
+    return this;
+  }
+
+  /**
+   * Get the cap on connections kept open between requests
+   *
+   * @return maximum idle persistent connections
+   */
+  public int getMaxIdleConnections() {
+    return maxIdleConnections;
+  }
+
+  /**
+   * Set how many connections may be kept open waiting for another request. Once
+   * that many are idle, further responses close their connection. An idle
+   * connection still holds a handler thread, so with a bounded pool of platform
+   * threads this must be well below the pool size or idle clients starve new
+   * ones. Unlimited by default, which suits an executor with a thread per task.
+   *
+   * @param maxIdleConnections maximum idle persistent connections, 0 to disable persistence
+   * @return this config
+   */
+  public ServerConfig setMaxIdleConnections(int maxIdleConnections) {
+    if (maxIdleConnections < 0) {
+      throw new IllegalArgumentException("idle connection cap must not be negative: " + maxIdleConnections);
+    }
+    this.maxIdleConnections = maxIdleConnections;
+    return this;
+  }
+
+  /**
+   * Get the listener for accepted connections
+   *
+   * @return the listener, or null if none
+   */
+  public ConnectionListener getConnectionListener() {
+    return connectionListener;
+  }
+
+  /**
+   * Set a listener that is told about each accepted connection
+   *
+   * @param connectionListener listener
+   * @return this config
+   */
+  public ServerConfig setConnectionListener(ConnectionListener connectionListener) {
+    this.connectionListener = connectionListener;
+    return this;
+  }
+
+  /**
+   * Get the IP traffic class for accepted connections
+   *
+   * @return the traffic class, or 0 to leave the OS default
+   */
+  public int getTrafficClass() {
+    return trafficClass;
+  }
+
+  /**
+   * Set the IP traffic class (the TOS byte, DSCP shifted left by two) that
+   * accepted connections mark their responses with
+   *
+   * @param trafficClass traffic class, or 0 to leave the OS default
+   * @return this config
+   */
+  public ServerConfig setTrafficClass(int trafficClass) {
+    if (trafficClass < 0 || trafficClass > 255) {
+      throw new IllegalArgumentException("traffic class must be between 0 and 255: " + trafficClass);
+    }
+    this.trafficClass = trafficClass;
+    return this;
+  }
+
+  /**
+   * Get the local address to listen on
+   *
+   * @return the address, or null to listen on all interfaces
+   */
+  public InetAddress getBindAddress() {
+    return bindAddress;
+  }
+
+  /**
+   * Set the local address to listen on
+   *
+   * @param bindAddress address, or null to listen on all interfaces
+   * @return this config
+   */
+  public ServerConfig setBindAddress(InetAddress bindAddress) {
+    this.bindAddress = bindAddress;
+    return this;
+  }
+}